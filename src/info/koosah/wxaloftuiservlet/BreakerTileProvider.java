@@ -0,0 +1,157 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.awt.Image;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * A tiles provider that stops asking another one for tiles when it is
+ * failing. Tiles that recently failed are not asked for again until a
+ * short time has passed, and a circuit breaker refuses all requests for
+ * a while if too many recent ones failed or were too slow. Either way,
+ * the refusal is immediate, so that callers can fall back on cached
+ * tiles (or do without) instead of waiting out a timeout.
+ *
+ * The breaker and negative cache are shared objects, so that (like the
+ * token bucket of LimitingTileProvider) they can be used by the many
+ * instances of this class that are made. This class is meant to be
+ * placed just behind any LimitingTileProvider, so that time spent waiting
+ * for the rate limit does not make calls look slow; failures due to the
+ * rate limit (should it be placed in front of one anyhow) are not held
+ * against the upstream server. Every call allowed has its outcome
+ * reported, even if it fails unexpectedly, lest a half-open breaker wait
+ * forever for the outcome of its trial call.
+ */
+public class BreakerTileProvider extends FilterTileProvider
+{
+    CircuitBreaker breaker;
+    NegativeCache<Long> failed;
+
+    /**
+     * Constructor.
+     *
+     * @param breaker   Circuit breaker for the other provider
+     * @param failed    Remembers which tiles recently failed
+     * @param orig      Provider being protected
+     */
+    public BreakerTileProvider(CircuitBreaker breaker, NegativeCache<Long> failed, TileProvider orig)
+    {
+        super(orig);
+        this.breaker = breaker;
+        this.failed = failed;
+    }
+
+    /**
+     * Gets the tile for the specified column, row, and zoom level.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          Image of the tile
+     */
+    public Image getTile(int x, int y, int z) throws IOException
+    {
+        long key = check(x, y, z);
+        long start = System.nanoTime();
+        try {
+            Image ret = orig.getTile(x, y, z);
+            breaker.record(true, System.nanoTime() - start);
+            return ret;
+        } catch (IOException e) {
+            failure(key, e, start);
+            throw e;
+        } catch (RuntimeException e) {
+            breaker.record(false, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the encoded tile for the specified column, row, and zoom level.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          Encoded tile
+     */
+    public byte[] getTileBytes(int x, int y, int z) throws IOException
+    {
+        long key = check(x, y, z);
+        long start = System.nanoTime();
+        try {
+            byte[] ret = orig.getTileBytes(x, y, z);
+            breaker.record(true, System.nanoTime() - start);
+            return ret;
+        } catch (IOException e) {
+            failure(key, e, start);
+            throw e;
+        } catch (RuntimeException e) {
+            breaker.record(false, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the encoded tile for the specified column, row, and zoom level,
+     * unless it has not changed since a previous fetch.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @param etag      Entity tag from previous fetch, or null
+     * @param lastModified Last-modified time from previous fetch, or 0
+     * @return          TileResponse object
+     */
+    public TileResponse getTileIfChanged(int x, int y, int z, String etag, long lastModified) throws IOException
+    {
+        long key = check(x, y, z);
+        long start = System.nanoTime();
+        try {
+            TileResponse ret = orig.getTileIfChanged(x, y, z, etag, lastModified);
+            breaker.record(true, System.nanoTime() - start);
+            return ret;
+        } catch (IOException e) {
+            failure(key, e, start);
+            throw e;
+        } catch (RuntimeException e) {
+            breaker.record(false, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    private long check(int x, int y, int z) throws IOException
+    {
+        long key = TileKey.make(x, y, z);
+        if (failed.contains(key))
+            throw new TileUnavailableException("Tile " + TileKey.toString(key) + " recently failed");
+        if (!breaker.allow())
+            throw new TileUnavailableException("Tile server unavailable (circuit breaker open)");
+        return key;
+    }
+
+    private void failure(long key, IOException e, long start)
+    {
+        /* our rate limit, or being interrupted, is not the server's fault
+           (but timeouts, which are also InterruptedIOExceptions, are) */
+        if (e instanceof LimitingTileProvider.TileLimitException
+            || (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException))) {
+            breaker.ignore();
+            return;
+        }
+        breaker.record(false, System.nanoTime() - start);
+        failed.put(key);
+    }
+
+    /**
+     * Exception thrown when a tile is not even asked for.
+     */
+    public class TileUnavailableException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public TileUnavailableException(String message)
+        {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.awt.Image;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static info.koosah.wxaloftuiservlet.WorldPixel.*;
+
+/**
+ * Fills in the lower zoom levels of a directory tile cache (as made by
+ * CachingTileProvider) from the higher ones, without fetching anything.
+ * Works upwards from the deepest level cached: each missing tile all of
+ * whose four children are cached is made by shrinking the children
+ * into it. Tiles are made in parallel, on a fork-join pool.
+ *
+ * @author David Barts <n5jrn@me.com>
+ *
+ */
+public class BuildPyramid {
+
+    public static final String MYNAME = "BuildPyramid";
+    private static final int THRESHOLD = 16;  /* tiles per fork-join task */
+
+    public static void main(String[] args) throws Exception
+    {
+        // Parse command-line options
+        if (args.length < 1 || args.length > 3) {
+            System.err.format("%s: syntax: %s cachedir [minzoom [maxzoom]]%n", MYNAME, MYNAME);
+            System.exit(2);
+        }
+        File cacheDir = new File(args[0]);
+        int minZoom = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        int maxZoom = args.length > 2 ? Integer.parseInt(args[2]) : deepest(cacheDir);
+
+        // Enter headless mode
+        System.setProperty("java.awt.headless", "true");
+
+        // Work up the pyramid, a level at a time
+        CachingTileProvider p = new CachingTileProvider(cacheDir, null);
+        ForkJoinPool pool = new ForkJoinPool();
+        int total = 0;
+        try {
+            for (int z = maxZoom; z > minZoom; z--) {
+                long[] parents = getParents(cacheDir, z);
+                AtomicInteger made = new AtomicInteger(0);
+                pool.invoke(new Build(p, parents, 0, parents.length, made));
+                System.out.format("Zoom %d: made %d of %d possible tiles.%n", z - 1, made.get(), parents.length);
+                total += made.get();
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+        System.out.format("Made %d tiles in \"%s\".%n", total, cacheDir);
+    }
+
+    /* the parents of all tiles cached at a zoom level */
+    private static long[] getParents(File cacheDir, int z)
+    {
+        HashSet<Long> parents = new HashSet<Long>();
+        String suffix = "." + TileImages.TYPE;
+        for (File czy : listNumeric(new File(cacheDir, Integer.toString(z)))) {
+            int y = Integer.parseInt(czy.getName());
+            File[] children = czy.listFiles();
+            if (children == null)
+                continue;
+            for (File czyx : children) {
+                String name = czyx.getName();
+                if (!name.endsWith(suffix))
+                    continue;
+                try {
+                    int x = Integer.parseInt(name.substring(0, name.length() - suffix.length()));
+                    parents.add(TileKey.make(x >> 1, y >> 1, z - 1));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            }
+        }
+        long[] ret = new long[parents.size()];
+        int i = 0;
+        for (long key : parents)
+            ret[i++] = key;
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    private static int deepest(File cacheDir)
+    {
+        int ret = 0;
+        for (File cz : listNumeric(cacheDir))
+            ret = Math.max(ret, Math.min(MAXZOOM, Integer.parseInt(cz.getName())));
+        return ret;
+    }
+
+    private static File[] listNumeric(File dir)
+    {
+        File[] ret = dir.listFiles(f -> f.isDirectory() && f.getName().matches("[0-9]+"));
+        return ret == null ? new File[0] : ret;
+    }
+
+    /* makes the tiles for a range of parent keys */
+    private static class Build extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        private CachingTileProvider p;
+        private long[] keys;
+        private int start, end;
+        private AtomicInteger made;
+
+        public Build(CachingTileProvider p, long[] keys, int start, int end, AtomicInteger made)
+        {
+            this.p = p;
+            this.keys = keys;
+            this.start = start;
+            this.end = end;
+            this.made = made;
+        }
+
+        protected void compute()
+        {
+            if (end - start > THRESHOLD) {
+                int mid = (start + end) >>> 1;
+                invokeAll(new Build(p, keys, start, mid, made), new Build(p, keys, mid, end, made));
+                return;
+            }
+            try {
+                for (int i = start; i < end; i++)
+                    if (make(TileKey.getX(keys[i]), TileKey.getY(keys[i]), TileKey.getZ(keys[i])))
+                        made.incrementAndGet();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private boolean make(int x, int y, int z) throws IOException
+        {
+            if (p.getCachedTileBytes(x, y, z) != null)
+                return false;
+            Image[] children = new Image[4];
+            for (int i = 0; i < 4; i++) {
+                byte[] cached = p.getCachedTileBytes((x << 1) + (i & 1), (y << 1) + (i >> 1), z + 1);
+                if (cached == null)
+                    return false;
+                children[i] = TileImages.decode(cached);
+            }
+            p.putTileBytes(x, y, z, TileImages.encode(TileImages.shrink(children)));
+            return true;
+        }
+    }
+}
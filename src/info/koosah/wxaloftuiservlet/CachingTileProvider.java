@@ -1,33 +1,104 @@
 package info.koosah.wxaloftuiservlet;
 
 import java.awt.Image;
-import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.locks.Lock;
-import javax.imageio.ImageIO;
 
 /**
  * @author n5jrn@me.com
  * @since 2017-11-27
  *
- * A tiles provider that caches another one.
+ * A tiles provider that caches another one. Tiles are cached exactly as
+ * the other provider encoded them, and only decoded if someone asks for
+ * their images.
+ *
+ * The entity tag and last-modified time of each tile, if the other
+ * provider supplied them, are kept in a sidecar file next to it, so that
+ * expired tiles can be revalidated instead of refetched.
+ *
+ * Optionally, tiles that have expired (but not by too much) may be
+ * served anyway while a fresh copy is fetched in the background. If
+ * fetching a fresh copy fails, any cached copy is served, however old.
+ *
+ * No locking is needed, even if several processes share a cache: files
+ * are written under temporary names in the same directory, then renamed
+ * into place atomically, so readers only ever see complete files. (The
+ * only lock is a shared one, see ThreadLock, held while writing, which
+ * keeps the janitor from evicting a tile as it is being rewritten.)
  */
-public class CachingTileProvider extends TileProvider
+public class CachingTileProvider extends FilterTileProvider
 {
-    private static final String TYPE = "png";
-    private static final long MAXLIFE = 30L * 24L * 60L * 60L * 1000L;  /* 30 days */
+    private static final String TYPE = TileImages.TYPE;
+    static final String META = "meta";
+    static final String TEMP = ".tmp";
+    public static final long MAXLIFE = 30L * 24L * 60L * 60L * 1000L;  /* 30 days */
 
     File cacheDir;
-    TileProvider orig;
+    long maxLife;
+    TileRefresher refresher;
+    long maxStale;
+    TileCacheJanitor janitor;
+    /* per instance, not per directory, since each stack TileStack builds
+       has its own instance (with its own limits) caching into the same
+       directory, and one stack's failures must not be handed to another's
+       callers */
+    private SingleFlight<File, byte[]> flights;
 
     public CachingTileProvider(File cacheDir, TileProvider orig)
     {
-        this.orig = orig;
+        super(orig);
         this.cacheDir = cacheDir;
+        this.flights = new SingleFlight<File, byte[]>();
+        this.maxLife = MAXLIFE;
+        this.refresher = null;
+        this.maxStale = MAXLIFE;
+        this.janitor = null;
+    }
+
+    /**
+     * Set the age at which cached tiles expire.
+     *
+     * @param maxLife   Maximum age in milliseconds of a fresh tile
+     */
+    public void setMaxLife(long maxLife)
+    {
+        this.maxLife = maxLife;
+    }
+
+    /**
+     * Report tile usage to a janitor, which keeps the cache within
+     * its budget.
+     *
+     * @param janitor   TileCacheJanitor for our cache directory
+     */
+    public void setJanitor(TileCacheJanitor janitor)
+    {
+        this.janitor = janitor;
+    }
+
+    /**
+     * Enable stale-while-revalidate mode: tiles whose age exceeds the
+     * normal maximum, but not the specified ceiling, are served anyway
+     * and refreshed in the background. Past the ceiling, tiles are
+     * always fetched before being served.
+     *
+     * @param refresher Does the background refreshing
+     * @param maxStale  Maximum age in milliseconds of a tile to serve
+     */
+    public void setStaleWhileRevalidate(TileRefresher refresher, long maxStale)
+    {
+        this.refresher = refresher;
+        this.maxStale = maxStale;
     }
 
     /**
@@ -40,49 +111,245 @@ public class CachingTileProvider extends TileProvider
     public Image getTile(int x, int y, int z) throws IOException
     {
         /* if it's in the cache, use that */
-        File cz = new File(cacheDir, Integer.toString(z));
-        File czy = new File(cz, Integer.toString(y));
-        File czyx = new File(czy, String.format("%d.%s", x, TYPE));
-        if (czyx.exists() && (System.currentTimeMillis() - czyx.lastModified()) < MAXLIFE) {
-            Lock tLock = ThreadLock.readLock(czyx);
-            try (
-                FileInputStream in = new FileInputStream(czyx);
-                FileLock pLock = in.getChannel().lock(0L, Long.MAX_VALUE, true)
-            ) {
-                return ImageIO.read(in);
+        File czyx = getFile(x, y, z);
+        byte[] cached = readCached(x, y, z, czyx);
+        if (cached != null) {
+            try {
+                return TileImages.decode(cached);
             } catch (IOException e) {
-                /* assume it's a corrupt file, let a new one get fetched */
-            } finally {
-                tLock.unlock();
+                /* assume it's a corrupt file, let a new one get fetched
+                   (and don't let it get revalidated) */
+                czyx.delete();
             }
         }
 
-        /* else fetch it, cache it, return it */
-        Image ret = orig.getTile(x, y, z);
-        if (!czy.exists())
-            czy.mkdirs();
-        Lock tLock = ThreadLock.writeLock(czyx);
-        try (
-            FileOutputStream out = new FileOutputStream(czyx);
-            FileLock pLock = out.getChannel().lock(0L, Long.MAX_VALUE, false)
-        ) {
-            ImageIO.write((RenderedImage) ret, TYPE, out);
-        } finally {
-            tLock.unlock();
-        }
-        return ret;
+        /* else fetch it */
+        return TileImages.decode(fetchOrStale(x, y, z, czyx));
     }
 
     /**
-     * Returns the URL of a tile for the specified column, row, and
-     * zoom level.
+     * Gets the encoded tile for the specified column, row, and zoom level.
+     * Concurrent requests to this provider for the same uncached tile are
+     * coalesced, so that only one of them fetches it from the original
+     * provider.
      * @param x         Column
      * @param y         Row
      * @param z         Zoom level
-     * @return          URL of the tile
+     * @return          Encoded tile
      */
-    public String getTileUrl(int x, int y, int z)
+    public byte[] getTileBytes(int x, int y, int z) throws IOException
     {
-        return orig.getTileUrl(x, y, z);
+        File czyx = getFile(x, y, z);
+        byte[] ret = readCached(x, y, z, czyx);
+        return ret != null ? ret : fetchOrStale(x, y, z, czyx);
+    }
+
+    /**
+     * Gets the encoded tile for the specified column, row, and zoom level
+     * only if it is already cached (however old it is).
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          Encoded tile, or null if not cached
+     */
+    public byte[] getCachedTileBytes(int x, int y, int z) throws IOException
+    {
+        File czyx = getFile(x, y, z);
+        return czyx.exists() ? read(czyx) : null;
+    }
+
+    /**
+     * Store an encoded tile in the cache, as if it had just been fetched
+     * (but without validators, since it did not come from a server).
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @param data      Encoded tile
+     */
+    public void putTileBytes(int x, int y, int z, byte[] data) throws IOException
+    {
+        File czyx = getFile(x, y, z);
+        File czy = czyx.getParentFile();
+        Lock lock = ThreadLock.readLock(x, y, z);
+        try {
+            if (!czy.exists())
+                czy.mkdirs();
+            write(czyx, data);
+            getMetaFile(czyx).delete();
+            if (janitor != null)
+                janitor.stored(x, y, z, data.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private File getFile(int x, int y, int z)
+    {
+        File cz = new File(cacheDir, Integer.toString(z));
+        File czy = new File(cz, Integer.toString(y));
+        return new File(czy, String.format("%d.%s", x, TYPE));
+    }
+
+    private byte[] readCached(int x, int y, int z, File czyx) throws IOException
+    {
+        long modified = czyx.lastModified();
+        if (modified == 0L)
+            return null;
+        long age = System.currentTimeMillis() - modified;
+        boolean stale = age >= maxLife;
+        if (stale && (refresher == null || age >= maxStale))
+            return null;
+        byte[] ret = read(czyx);
+        if (ret != null && janitor != null)
+            janitor.touched(x, y, z);
+        if (ret != null && stale)
+            refresher.refresh(czyx, () -> fetch(x, y, z, czyx));
+        return ret;
+    }
+
+    private byte[] read(File czyx)
+    {
+        try (FileInputStream in = new FileInputStream(czyx)) {
+            return TileImages.readAll(in);
+        } catch (IOException e) {
+            /* assume it's a corrupt file, let a new one get fetched */
+            return null;
+        }
+    }
+
+    /* fetch, falling back on a copy of any age if the fetch fails */
+    private byte[] fetchOrStale(int x, int y, int z, File czyx) throws IOException
+    {
+        try {
+            return fetch(x, y, z, czyx);
+        } catch (IOException e) {
+            byte[] ret = czyx.exists() ? read(czyx) : null;
+            if (ret == null)
+                throw e;
+            return ret;
+        }
+    }
+
+    private byte[] fetch(int x, int y, int z, File czyx) throws IOException
+    {
+        /* fetch it (or wait for whoever is already fetching it) */
+        return flights.run(czyx, () -> {
+            /* someone may have cached it while we were looking */
+            long modified = czyx.lastModified();
+            if (modified != 0L && System.currentTimeMillis() - modified < maxLife) {
+                byte[] ret = read(czyx);
+                if (ret != null)
+                    return ret;
+            }
+
+            /* if we have an old copy, only fetch it if it changed */
+            File meta = getMetaFile(czyx);
+            Properties validators = czyx.exists() ? readMeta(meta) : new Properties();
+            TileResponse resp = orig.getTileIfChanged(x, y, z,
+                validators.getProperty("etag"), getLastModified(validators));
+            if (!resp.isModified()) {
+                byte[] ret = read(czyx);
+                if (ret != null) {
+                    czyx.setLastModified(System.currentTimeMillis());
+                    return ret;
+                }
+                resp = orig.getTileIfChanged(x, y, z, null, 0L);
+            }
+
+            /* cache what we got, if it is really a tile */
+            byte[] ret = resp.getData();
+            TileImages.verify(ret);
+            File czy = czyx.getParentFile();
+            Lock lock = ThreadLock.readLock(x, y, z);
+            try {
+                if (!czy.exists())
+                    czy.mkdirs();
+                write(czyx, ret);
+                long metaBytes = writeMeta(meta, resp);
+                if (janitor != null)
+                    janitor.stored(x, y, z, ret.length + metaBytes);
+            } finally {
+                lock.unlock();
+            }
+            return ret;
+        });
+    }
+
+    private File getMetaFile(File czyx)
+    {
+        String name = czyx.getName();
+        return new File(czyx.getParentFile(),
+            name.substring(0, name.length() - TYPE.length()) + META);
+    }
+
+    /* write to a temporary file, then atomically rename it into place */
+    private void write(File dest, byte[] data) throws IOException
+    {
+        Path target = dest.toPath();
+        Path temp = createTemp(target);
+        try {
+            Files.write(temp, data);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /* like Files.createTempFile, but with the usual permissions (as limited
+       by the umask), not owner-only ones, so that other processes sharing
+       the cache can read what we write */
+    private static Path createTemp(Path target) throws IOException
+    {
+        while (true) {
+            Path ret = target.resolveSibling(String.format("%s.%08x%s", target.getFileName(),
+                ThreadLocalRandom.current().nextInt(), TEMP));
+            try {
+                return Files.createFile(ret);
+            } catch (FileAlreadyExistsException e) {
+                /* unlikely, but just try another name */
+            }
+        }
+    }
+
+    private Properties readMeta(File meta)
+    {
+        Properties ret = new Properties();
+        try (FileInputStream in = new FileInputStream(meta)) {
+            ret.load(in);
+        } catch (IOException e) {
+            /* missing or unreadable, so we simply have no validators */
+        }
+        return ret;
+    }
+
+    private long getLastModified(Properties validators)
+    {
+        try {
+            return Long.parseLong(validators.getProperty("lastModified", "0"));
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    /* returns the size of the sidecar file written (0 if none) */
+    private long writeMeta(File meta, TileResponse resp) throws IOException
+    {
+        if (resp.getEtag() == null && resp.getLastModified() == 0L) {
+            meta.delete();
+            return 0L;
+        }
+        Properties validators = new Properties();
+        if (resp.getEtag() != null)
+            validators.setProperty("etag", resp.getEtag());
+        if (resp.getLastModified() != 0L)
+            validators.setProperty("lastModified", Long.toString(resp.getLastModified()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        validators.store(out, null);
+        write(meta, out.toByteArray());
+        return out.size();
     }
 }
@@ -0,0 +1,255 @@
+package info.koosah.wxaloftuiservlet;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests the CachingTileProvider module, against a stub tile server
+ * running in this process.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class CachingTileProviderTest
+{
+    private static final long OLD = 31L * 24L * 60L * 60L * 1000L;
+
+    private HttpServer server;
+    private File cacheDir;
+    private TileProvider upstream;
+    private AtomicInteger requests, notModified;
+    private AtomicLong bodyBytes;
+    private volatile byte[] tile;
+    private volatile String etag;
+    private volatile int status;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        requests = new AtomicInteger(0);
+        notModified = new AtomicInteger(0);
+        bodyBytes = new AtomicLong(0L);
+        tile = makeTile(0x336699);
+        etag = "\"v1\"";
+        status = 200;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::serve);
+        server.start();
+        final String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        upstream = new TileProvider() {
+            public String getTileUrl(int x, int y, int z) {
+                return String.format("%s/%d/%d/%d.png", base, z, x, y);
+            }
+        };
+        cacheDir = Files.createTempDirectory("tiles").toFile();
+    }
+
+    @After
+    public void tearDown()
+    {
+        server.stop(0);
+        delete(cacheDir);
+    }
+
+    @Test
+    public void hit() throws IOException
+    {
+        CachingTileProvider p = new CachingTileProvider(cacheDir, upstream);
+        assertArrayEquals(tile, p.getTileBytes(1, 2, 3));
+        assertArrayEquals(tile, p.getTileBytes(1, 2, 3));
+        assertEquals(1, requests.get());
+        assertEquals(tile.length, bodyBytes.get());
+    }
+
+    @Test
+    public void revalidate() throws IOException
+    {
+        CachingTileProvider p = new CachingTileProvider(cacheDir, upstream);
+        p.getTileBytes(1, 2, 3);
+        File f = age(1, 2, 3);
+        long then = System.currentTimeMillis();
+        assertArrayEquals(tile, p.getTileBytes(1, 2, 3));
+        assertEquals(2, requests.get());
+        assertEquals(1, notModified.get());
+        assertEquals(tile.length, bodyBytes.get());  /* no second download */
+        assertTrue(f.lastModified() >= then - 1000L);
+    }
+
+    @Test
+    public void changed() throws IOException
+    {
+        CachingTileProvider p = new CachingTileProvider(cacheDir, upstream);
+        byte[] old = p.getTileBytes(1, 2, 3);
+        tile = makeTile(0x996633);
+        etag = "\"v2\"";
+        age(1, 2, 3);
+        byte[] current = p.getTileBytes(1, 2, 3);
+        assertFalse(Arrays.equals(old, current));
+        assertArrayEquals(tile, current);
+        assertEquals(0, notModified.get());
+        assertEquals(old.length + current.length, bodyBytes.get());
+    }
+
+    @Test
+    public void staleOnFailure() throws IOException
+    {
+        CachingTileProvider p = new CachingTileProvider(cacheDir, upstream);
+        byte[] old = p.getTileBytes(1, 2, 3);
+        age(1, 2, 3);
+        status = 503;
+        assertArrayEquals(old, p.getTileBytes(1, 2, 3));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void notAnImage() throws IOException
+    {
+        CachingTileProvider p = new CachingTileProvider(cacheDir, upstream);
+        byte[] good = tile;
+        tile = "<html><body>Over quota</body></html>".getBytes("US-ASCII");
+        try {
+            p.getTileBytes(1, 2, 3);
+            fail("expected failure");
+        } catch (IOException e) {
+            /* expected */
+        }
+        tile = Arrays.copyOf(good, good.length - 1);
+        try {
+            p.getTileBytes(1, 2, 3);
+            fail("expected failure");
+        } catch (IOException e) {
+            /* expected */
+        }
+        assertNull(p.getCachedTileBytes(1, 2, 3));
+        tile = good;
+        assertArrayEquals(good, p.getTileBytes(1, 2, 3));
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void negativeCache() throws IOException
+    {
+        status = 503;
+        CircuitBreaker breaker = new CircuitBreaker(CircuitBreaker.ERROR_RATE, CircuitBreaker.SLOW_CALL,
+            CircuitBreaker.SLOW_RATE, CircuitBreaker.OPEN_TIME);
+        NegativeCache<Long> failed = new NegativeCache<Long>(NegativeCache.TTL, NegativeCache.MAX_SIZE);
+        CachingTileProvider p = new CachingTileProvider(cacheDir, new BreakerTileProvider(breaker, failed, upstream));
+        try {
+            p.getTileBytes(1, 2, 3);
+            fail("expected failure");
+        } catch (IOException e) {
+            assertFalse(e instanceof BreakerTileProvider.TileUnavailableException);
+        }
+        try {
+            p.getTileBytes(1, 2, 3);
+            fail("expected failure");
+        } catch (BreakerTileProvider.TileUnavailableException e) {
+            /* expected, and without asking the server */
+        }
+        assertEquals(1, requests.get());
+    }
+
+    @Test(timeout = 10000L)
+    public void notShared() throws Exception
+    {
+        /* a background stack, whose fetch is stuck and will fail */
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        CachingTileProvider background = new CachingTileProvider(cacheDir, new FilterTileProvider(upstream) {
+            public TileResponse getTileIfChanged(int x, int y, int z, String etag, long lastModified) throws IOException {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    /* fail sooner, then */
+                }
+                throw new IOException("background failure");
+            }
+        });
+        Thread t = new Thread(() -> {
+            try {
+                background.getTileBytes(1, 2, 3);
+            } catch (IOException e) {
+                /* expected, unless the foreground fetch got there first */
+            }
+        });
+        t.start();
+
+        /* the foreground stack, sharing the directory, neither waits for
+           the background fetch nor sees its failure */
+        try {
+            entered.await();
+            CachingTileProvider foreground = new CachingTileProvider(cacheDir, upstream);
+            assertArrayEquals(tile, foreground.getTileBytes(1, 2, 3));
+            assertEquals(1, requests.get());
+        } finally {
+            release.countDown();
+            t.join();
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException
+    {
+        requests.incrementAndGet();
+        if (status != 200) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        byte[] body = tile;
+        String tag = etag;
+        exchange.getResponseHeaders().set("ETag", tag);
+        if (tag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            notModified.incrementAndGet();
+            exchange.sendResponseHeaders(304, -1);
+        } else {
+            exchange.getResponseHeaders().set("Content-Type", "image/png");
+            /* count first, since the client may finish before we do */
+            bodyBytes.addAndGet(body.length);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        exchange.close();
+    }
+
+    private File age(int x, int y, int z)
+    {
+        File f = new File(new File(new File(cacheDir, Integer.toString(z)), Integer.toString(y)), x + ".png");
+        assertTrue(f.setLastModified(System.currentTimeMillis() - OLD));
+        return f;
+    }
+
+    private byte[] makeTile(int rgb) throws IOException
+    {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 256; y++)
+            for (int x = 0; x < 256; x++)
+                image.setRGB(x, y, rgb ^ (x * y));
+        return TileImages.encode(image);
+    }
+
+    private void delete(File f)
+    {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File c : children)
+                delete(c);
+        f.delete();
+    }
+}
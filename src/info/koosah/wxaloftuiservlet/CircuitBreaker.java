@@ -0,0 +1,192 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * A circuit breaker, for failing fast when something we depend on is
+ * failing or too slow. While closed, the outcomes of the most recent
+ * calls are remembered; if too many of them failed or were too slow,
+ * the breaker opens and refuses all calls for a while. After that, one
+ * trial call is let through (the breaker is half open): if it goes well
+ * the breaker closes again, else it reopens.
+ *
+ * Callers ask allow() before each call and report its outcome with
+ * record(), or with ignore() if the outcome says nothing about the
+ * health of the thing being called.
+ */
+public class CircuitBreaker
+{
+    public static final int WINDOW = 20;  /* calls remembered */
+    public static final int MIN_CALLS = 10;  /* calls needed before tripping */
+    public static final double ERROR_RATE = 0.5;  /* fraction failing to trip */
+    public static final long SLOW_CALL = 5000L;  /* ms; slower calls are slow */
+    public static final double SLOW_RATE = 0.5;  /* fraction slow to trip */
+    public static final long OPEN_TIME = 30000L;  /* ms to stay open */
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private double errorRate, slowRate;
+    private long slowCall, openTime;
+    private byte[] outcomes;  /* ring of recent outcomes */
+    private int next, calls, failures, slows;
+    private State state;
+    private long openedAt;
+    private boolean probing;
+    private long trips, rejected;
+
+    private static final byte OK = 0, FAILED = 1, SLOW = 2;
+
+    /**
+     * Constructor, using the default window and minimum calls.
+     *
+     * @param errorRate Fraction of recent calls failing that trips us
+     * @param slowCall  Milliseconds after which a call counts as slow
+     * @param slowRate  Fraction of recent calls slow that trips us
+     * @param openTime  Milliseconds to stay open once tripped
+     */
+    public CircuitBreaker(double errorRate, long slowCall, double slowRate, long openTime)
+    {
+        this.errorRate = errorRate;
+        this.slowCall = slowCall;
+        this.slowRate = slowRate;
+        this.openTime = openTime;
+        this.outcomes = new byte[WINDOW];
+        this.state = State.CLOSED;
+        this.trips = this.rejected = 0L;
+        reset();
+    }
+
+    /**
+     * Ask if a call may be made. If the answer is yes, the outcome of
+     * the call must be reported by calling record() or ignore().
+     *
+     * @return          True if the call may be made
+     */
+    public synchronized boolean allow()
+    {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openTime) {
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+        switch (state) {
+        case CLOSED:
+            return true;
+        case HALF_OPEN:
+            if (probing)
+                break;
+            probing = true;
+            return true;
+        default:
+            break;
+        }
+        rejected++;
+        return false;
+    }
+
+    /**
+     * Report the outcome of a call.
+     *
+     * @param ok        True if the call succeeded
+     * @param elapsed   How long the call took, in nanoseconds
+     */
+    public synchronized void record(boolean ok, long elapsed)
+    {
+        byte outcome = !ok ? FAILED : (TimeUnit.NANOSECONDS.toMillis(elapsed) >= slowCall ? SLOW : OK);
+        if (state == State.HALF_OPEN) {
+            probing = false;
+            if (outcome == OK) {
+                state = State.CLOSED;
+                reset();
+            } else
+                trip();
+            return;
+        }
+        if (state == State.OPEN)
+            return;  /* a straggler from before we opened */
+        if (calls == WINDOW)
+            forget(outcomes[next]);
+        else
+            calls++;
+        outcomes[next] = outcome;
+        next = (next + 1) % WINDOW;
+        if (outcome == FAILED)
+            failures++;
+        else if (outcome == SLOW)
+            slows++;
+        if (calls >= MIN_CALLS && (failures >= errorRate * calls || slows >= slowRate * calls))
+            trip();
+    }
+
+    /**
+     * Report that a call was allowed but its outcome should not count.
+     */
+    public synchronized void ignore()
+    {
+        if (state == State.HALF_OPEN)
+            probing = false;
+    }
+
+    private void forget(byte outcome)
+    {
+        if (outcome == FAILED)
+            failures--;
+        else if (outcome == SLOW)
+            slows--;
+    }
+
+    private void trip()
+    {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        trips++;
+        reset();
+    }
+
+    private void reset()
+    {
+        next = calls = failures = slows = 0;
+        probing = false;
+    }
+
+    /**
+     * Get the current state.
+     *
+     * @return          State
+     */
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+    /**
+     * Get number of times we have tripped.
+     *
+     * @return          Count
+     */
+    public synchronized long getTrips()
+    {
+        return trips;
+    }
+
+    /**
+     * Get number of calls refused.
+     *
+     * @return          Count
+     */
+    public synchronized long getRejected()
+    {
+        return rejected;
+    }
+
+    /**
+     * Summarize breaker state and statistics.
+     *
+     * @return          Printable string
+     */
+    public synchronized String toString()
+    {
+        return String.format("%s, %d trips, %d rejected", state, trips, rejected);
+    }
+}
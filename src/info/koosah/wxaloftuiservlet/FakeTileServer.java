@@ -0,0 +1,231 @@
+package info.koosah.wxaloftuiservlet;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A stand-in for a tile server, for tuning and benchmarking without
+ * bothering a real one. Serves a generated tile for any /z/x/y.png,
+ * after a configurable delay, at a configurable bandwidth, and failing
+ * (with 503 Service Unavailable) at a configurable rate. Point a
+ * UrlTileProvider (or the tiles.upstream.url parameter) at getTemplate().
+ *
+ * @author David Barts <n5jrn@me.com>
+ *
+ */
+public class FakeTileServer {
+
+    public static final String MYNAME = "FakeTileServer";
+    public static final int THREADS = 32;
+    private static final Pattern PATH = Pattern.compile("/(\\d{1,9})/(\\d{1,9})/(\\d{1,9})\\.png");
+    private static final int CHUNKS_PER_SECOND = 100;  /* when limiting bandwidth */
+
+    private long latency, jitter;
+    private double errorRate;
+    private long bandwidth;
+    private HttpServer server;
+    private ExecutorService executor;
+    private AtomicLong requests, errors, bytes;
+
+    /**
+     * Constructor.
+     *
+     * @param latency   Milliseconds to wait before responding
+     * @param jitter    Maximum milliseconds to randomly add to or subtract
+     *                  from the latency
+     * @param errorRate Fraction of requests to fail
+     * @param bandwidth Bytes per second to send each response at, or 0 for
+     *                  no limit
+     */
+    public FakeTileServer(long latency, long jitter, double errorRate, long bandwidth)
+    {
+        this.latency = latency;
+        this.jitter = jitter;
+        this.errorRate = errorRate;
+        this.bandwidth = bandwidth;
+        requests = new AtomicLong(0L);
+        errors = new AtomicLong(0L);
+        bytes = new AtomicLong(0L);
+    }
+
+    /**
+     * Start serving.
+     *
+     * @param port      Port to listen on (on the loopback address), or 0
+     *                  for any free one
+     */
+    public void start(int port) throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/", this::serve);
+        executor = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, MYNAME);
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Stop serving.
+     */
+    public void stop()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Get the template for our tile URLs, as used by UrlTileProvider.
+     *
+     * @return          Template string
+     */
+    public String getTemplate()
+    {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/{z}/{x}/{y}.png";
+    }
+
+    /**
+     * Get number of requests received.
+     *
+     * @return          Count
+     */
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    /**
+     * Get number of requests deliberately failed.
+     *
+     * @return          Count
+     */
+    public long getErrors()
+    {
+        return errors.get();
+    }
+
+    /**
+     * Get number of tile bytes sent.
+     *
+     * @return          Count
+     */
+    public long getBytes()
+    {
+        return bytes.get();
+    }
+
+    /**
+     * Summarize what we have served.
+     *
+     * @return          Printable string
+     */
+    public String toString()
+    {
+        return String.format("%d requests, %d errors, %d bytes", getRequests(), getErrors(), getBytes());
+    }
+
+    /**
+     * Generate the tile for a column, row and zoom level: a distinct
+     * color, with a pattern on it so it does not compress to nothing.
+     *
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          Encoded tile
+     */
+    public static byte[] makeTile(int x, int y, int z) throws IOException
+    {
+        int rgb = (x * 0x9E3779B1 + y * 0x85EBCA77 + z * 0xC2B2AE3D) & 0xffffff;
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setColor(new Color(rgb));
+            g.fillRect(0, 0, 256, 256);
+            g.setColor(new Color(rgb ^ 0x808080));
+            for (int i = (x + y) & 15; i < 512; i += 16)
+                g.drawLine(i, 0, 0, i);
+            g.setColor(Color.BLACK);
+            g.drawRect(0, 0, 255, 255);
+        } finally {
+            g.dispose();
+        }
+        return TileImages.encode(image);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException
+    {
+        try {
+            requests.incrementAndGet();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long delay = latency + (jitter > 0L ? random.nextLong(-jitter, jitter + 1L) : 0L);
+            if (delay > 0L)
+                Thread.sleep(delay);
+            Matcher m = PATH.matcher(exchange.getRequestURI().getPath());
+            if (!m.matches()) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (random.nextDouble() < errorRate) {
+                errors.incrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            byte[] body = makeTile(Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)),
+                Integer.parseInt(m.group(1)));
+            exchange.getResponseHeaders().set("Content-Type", "image/" + TileImages.TYPE);
+            bytes.addAndGet(body.length);
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            if (bandwidth <= 0L) {
+                out.write(body);
+            } else {
+                int chunk = (int) Math.max(1L, bandwidth / CHUNKS_PER_SECOND);
+                for (int i = 0; i < body.length; i += chunk) {
+                    out.write(body, i, Math.min(chunk, body.length - i));
+                    out.flush();
+                    Thread.sleep(1000L / CHUNKS_PER_SECOND);
+                }
+            }
+            out.close();
+        } catch (InterruptedException e) {
+            /* being stopped; just drop the connection */
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        // Parse command-line options
+        if (args.length > 5) {
+            System.err.format("%s: syntax: %s [port [latency [jitter [error-rate [bandwidth]]]]]%n", MYNAME, MYNAME);
+            System.exit(2);
+        }
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8081;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 0L;
+        long jitter = args.length > 2 ? Long.parseLong(args[2]) : 0L;
+        double errorRate = args.length > 3 ? Double.parseDouble(args[3]) : 0.0;
+        long bandwidth = args.length > 4 ? Long.parseLong(args[4]) : 0L;
+
+        // Enter headless mode and serve until killed
+        System.setProperty("java.awt.headless", "true");
+        FakeTileServer server = new FakeTileServer(latency, jitter, errorRate, bandwidth);
+        server.start(port);
+        System.out.format("Serving tiles at %s%n", server.getTemplate());
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,87 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.awt.Image;
+import java.io.IOException;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * A tiles provider that passes everything through to another one. Meant
+ * to be subclassed by providers that add something (caching, limits,
+ * etc.) to another provider; subclasses need only override what they
+ * change.
+ */
+public class FilterTileProvider extends TileProvider
+{
+    TileProvider orig;
+
+    public FilterTileProvider(TileProvider orig)
+    {
+        this.orig = orig;
+    }
+
+    /**
+     * Gets the tile for the specified column, row, and zoom level.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          Image of the tile
+     */
+    public Image getTile(int x, int y, int z) throws IOException
+    {
+        return orig.getTile(x, y, z);
+    }
+
+    /**
+     * Gets the encoded tile for the specified column, row, and zoom level.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          Encoded tile
+     */
+    public byte[] getTileBytes(int x, int y, int z) throws IOException
+    {
+        return orig.getTileBytes(x, y, z);
+    }
+
+    /**
+     * Gets the encoded tile for the specified column, row, and zoom level
+     * only if it is already cached.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          Encoded tile, or null if not cached
+     */
+    public byte[] getCachedTileBytes(int x, int y, int z) throws IOException
+    {
+        return orig.getCachedTileBytes(x, y, z);
+    }
+
+    /**
+     * Gets the encoded tile for the specified column, row, and zoom level,
+     * unless it has not changed since a previous fetch.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @param etag      Entity tag from previous fetch, or null
+     * @param lastModified Last-modified time from previous fetch, or 0
+     * @return          TileResponse object
+     */
+    public TileResponse getTileIfChanged(int x, int y, int z, String etag, long lastModified) throws IOException
+    {
+        return orig.getTileIfChanged(x, y, z, etag, lastModified);
+    }
+
+    /**
+     * Returns the URL of a tile for the specified column, row, and
+     * zoom level.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          URL of the tile
+     */
+    public String getTileUrl(int x, int y, int z)
+    {
+        return orig.getTileUrl(x, y, z);
+    }
+}
@@ -37,17 +37,49 @@ public class GetMap extends HttpServlet {
 
     private static final Logger LOGGER = Logger.getLogger(GetMap.class.getCanonicalName());
     public static final int PIXELS = 640;
-    public static final int LIMIT = 25;
     public static final int RADIUS = 4;
 
+    private TileStack tileStack;
+
+    /**
+     * Build the stack of tile providers shared by all requests.
+     */
+    public void init() throws ServletException
+    {
+        tileStack = new TileStack(getServletContext());
+        getServletContext().setAttribute(TileStack.ATTRIBUTE, tileStack);
+        tileStack.start();
+    }
+
+    /**
+     * Release shared resources.
+     */
+    public void destroy()
+    {
+        getServletContext().removeAttribute(TileStack.ATTRIBUTE);
+        tileStack.destroy();
+    }
+
     /**
      * Process a GET request by returning all appropriate observations.
      * @param req     HttpServletRequest
      * @param resp    HttpServletResponse
      */
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        MapParams params = getParams(req, resp);
+        if (params == null)
+            return;
+
+        /* a map we made recently needs no database connection, let alone
+           querying or rendering */
+        MapResponseCache.Entry cached = tileStack.getResponseCache().getFresh(params.toString());
+        if (cached != null) {
+            sendMap(req, resp, cached.getData(), cached.getEtag());
+            return;
+        }
+
         try (Connection conn = getConnection()) {
-            doGetWithConnection(req, resp, conn);
+            doGetWithConnection(req, resp, conn, params);
         } catch (NamingException|SQLException e) {
             LOGGER.log(Level.SEVERE, "Unable to obtain database connection", e);
             resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to obtain DB connection)");
@@ -55,7 +87,8 @@ public class GetMap extends HttpServlet {
         }
     }
 
-    private void doGetWithConnection(HttpServletRequest req, HttpServletResponse resp, Connection conn) throws IOException
+    /* get and check the parameters, or send an error and return null */
+    private MapParams getParams(HttpServletRequest req, HttpServletResponse resp) throws IOException
     {
         /* get (mandatory) database bounds */
         Long from = null, to = null;
@@ -64,37 +97,18 @@ public class GetMap extends HttpServlet {
             to = getLong(req, "to");
         } catch (NumberFormatException e) {
             resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid integer)");
-            return;
+            return null;
         }
         if (from == null || to == null) {
             resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (missing from= or to= parameter)");
-            return;
+            return null;
         }
 
-        /* get the mandatory area and translate it into a numeric ID */
+        /* get the mandatory area (translated into a numeric ID later) */
         String area = req.getParameter("area");
         if (area == null) {
             resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (missing area= parameter)");
-            return;
-        }
-        int areaId = -1;
-        try {
-            areaId = Integer.parseInt(area);
-        } catch (NumberFormatException e) {
-            try (PreparedStatement stmt = conn.prepareStatement("select id from areas where name = ?")) {
-                stmt.setString(1, area);
-                ResultSet rs = stmt.executeQuery();
-                if (rs.next())
-                    areaId = rs.getInt(1);
-                else {
-                    resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid area)");
-                    return;
-                }
-            } catch (SQLException e2) {
-                LOGGER.log(Level.SEVERE, "Unable to resolve area", e2);
-                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to resolve area)");
-                return;
-            }
+            return null;
         }
 
         /* get the mandatory bounds and zoom level */
@@ -107,11 +121,11 @@ public class GetMap extends HttpServlet {
             zoom = getInteger(req, "zoom");
         } catch (NumberFormatException e) {
             resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid integer)");
-            return;
+            return null;
         }
         if (north == null || south == null || east == null || west == null || zoom == null) {
             resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (bounds or zoom not specified)");
-            return;
+            return null;
         }
 
         /* get bounds and zoom limits from session (also mandatory) */
@@ -123,7 +137,7 @@ public class GetMap extends HttpServlet {
         Integer zoomLimit = (Integer) sess.getAttribute("zoom");
         if (northLimit == null || southLimit == null || eastLimit == null || westLimit == null || zoomLimit == null) {
             resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (incomplete session)");
-            return;
+            return null;
         }
 
         /* reject requests with invalid bounds or zoom */
@@ -135,20 +149,47 @@ public class GetMap extends HttpServlet {
         boolean invalidZoom = zoom < zoomLimit || zoom > MAXZOOM;
         if (invalidBounds || invalidZoom) {
             resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid bounds or zoom)");
-            return;
+            return null;
         }
 
         /* reject requests for overly large maps */
         if (south - north > PIXELS || eastFrom(west, east, zoom) > PIXELS) {
             resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (map too large)");
-            return;
+            return null;
+        }
+
+        return new MapParams(from, to, area.trim(), south, west, north, east, zoom);
+    }
+
+    private void doGetWithConnection(HttpServletRequest req, HttpServletResponse resp, Connection conn, MapParams params) throws IOException
+    {
+        /* translate the area into a numeric ID */
+        String area = params.area;
+        int areaId = -1;
+        try {
+            areaId = Integer.parseInt(area);
+        } catch (NumberFormatException e) {
+            try (PreparedStatement stmt = conn.prepareStatement("select id from areas where name = ?")) {
+                stmt.setString(1, area);
+                ResultSet rs = stmt.executeQuery();
+                if (rs.next())
+                    areaId = rs.getInt(1);
+                else {
+                    resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request (invalid area)");
+                    return;
+                }
+            } catch (SQLException e2) {
+                LOGGER.log(Level.SEVERE, "Unable to resolve area", e2);
+                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to resolve area)");
+                return;
+            }
         }
 
         /* get the data to plot */
         ArrayList<AcarsObservation> obs = new ArrayList<AcarsObservation>();
         try (PreparedStatement stmt = conn.prepareStatement("select observations.latitude, observations.longitude, observations.altitude, observations.observed from observations join obs_area on observations.id = obs_area.observation_id where observations.observed >= ? and observations.observed <= ? and obs_area.area_id = ?")) {
-            stmt.setTimestamp(1, new Timestamp(from));
-            stmt.setTimestamp(2, new Timestamp(to));
+            stmt.setTimestamp(1, new Timestamp(params.from));
+            stmt.setTimestamp(2, new Timestamp(params.to));
             stmt.setInt(3, areaId);
             ResultSet rs = stmt.executeQuery();
             while (rs.next())
@@ -159,57 +200,78 @@ public class GetMap extends HttpServlet {
             return;
         }
 
-        /* get cache directory and a provider */
-        String cachePath = getServletContext().getInitParameter("cache");
-        if (cachePath == null) {
-            LOGGER.log(Level.SEVERE, "No cache defined!");
-            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (no cache defined)");
-            return;
-        }
-        LimitingTileProvider p = new LimitingTileProvider(LIMIT,
-            new CachingTileProvider(new File(cachePath), new OsmTileProvider()));
+        /* OK, finally ready to generate a map (using stand-ins for any
+           tiles we can't get in time, rather than failing) */
+        Map m = new Map(params.south, params.west, params.north, params.east, params.zoom, tileStack.getProvider());
+        m.setFetcher(tileStack.getFetcher());
+        m.setFallback(tileStack.getFallback());
+        byte[] data = null;
+        try (ImagePool.Lease lease = tileStack.getImagePool().lease(m.getWidth(), m.getHeight())) {
+            BufferedImage image = lease.getImage();
+            try {
+                RenderCache renders = tileStack.getRenderCache();
+                if (renders == null)
+                    m.render(image);
+                else
+                    renders.render(m, image);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Unable to create map", e);
+                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to create map)");
+                return;
+            }
+            Graphics2D g = image.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                final int DIAMETER = RADIUS * 2;
+                final int OFFSET = RADIUS;
+                for (AcarsObservation o : obs) {
+                    int x = m.longToPixel(o.getLongitude()) - OFFSET;
+                    if (badX(image, x - 1) || badX(image, x + DIAMETER + 1))
+                        continue;
+                    int y = m.latToPixel(o.getLatitude()) - OFFSET;
+                    if (badY(image, y - 1) || badY(image, y + DIAMETER + 1))
+                        continue;
+                    g.setColor(getColor(o.getAltitude()));
+                    g.fillOval(x, y, DIAMETER, DIAMETER);
+                    g.setColor(Color.BLACK);
+                    g.drawOval(x, y, DIAMETER, DIAMETER);
+                }
+            } finally {
+                g.dispose();
+            }
 
-        /* OK, finally ready to generate a map */
-        Map m = new Map(south, west, north, east, zoom, p);
-        BufferedImage image = null;
-        try {
-            image = m.getImage();
-        } catch (IOException e) {
-            LOGGER.log(Level.SEVERE, "Unable to create map", e);
-            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error (unable to create map)");
-            return;
+            /* now encode it (before the image goes back to the pool) */
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", encoded);
+            data = encoded.toByteArray();
         }
-        Graphics2D g = null;
-        try {
-            g = image.createGraphics();
-            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-            final int DIAMETER = RADIUS * 2;
-            final int OFFSET = RADIUS;
-            for (AcarsObservation o : obs) {
-                int x = m.longToPixel(o.getLongitude()) - OFFSET;
-                if (badX(image, x - 1) || badX(image, x + DIAMETER + 1))
-                    continue;
-                int y = m.latToPixel(o.getLatitude()) - OFFSET;
-                if (badY(image, y - 1) || badY(image, y + DIAMETER + 1))
-                    continue;
-                g.setColor(getColor(o.getAltitude()));
-                g.fillOval(x, y, DIAMETER, DIAMETER);
-                g.setColor(Color.BLACK);
-                g.drawOval(x, y, DIAMETER, DIAMETER);
-            }
+        /* cache it (unless degraded) and return it */
+        if (m.isDegraded()) {
+            resp.setHeader("Cache-Control", "no-cache");
+            sendMap(req, resp, data, null);
+        } else {
+            sendMap(req, resp, data, tileStack.getResponseCache().put(params.toString(), data).getEtag());
+        }
+    }
 
-            /* now return it */
-            resp.setStatus(200);
-            resp.setContentType("image/png");
-            OutputStream out = resp.getOutputStream();
-            ImageIO.write(image, "png", out);
-            out.flush();
-        } finally {
-            if (g != null)
-                g.dispose();
-            image.flush();
+    /* send a map, or a 304 if the browser already has it */
+    private void sendMap(HttpServletRequest req, HttpServletResponse resp, byte[] data, String etag) throws IOException
+    {
+        if (etag != null) {
+            resp.setHeader("ETag", etag);
+            resp.setHeader("Cache-Control", "private, max-age=" + tileStack.getResponseCache().getTtl() / 1000L);
+            if (MapResponseCache.matches(req.getHeader("If-None-Match"), etag)) {
+                resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
         }
+        resp.setStatus(200);
+        resp.setContentType("image/png");
+        resp.setContentLength(data.length);
+        OutputStream out = resp.getOutputStream();
+        out.write(data);
+        out.flush();
     }
 
     private boolean badX(RenderedImage image, int x)
@@ -253,6 +315,32 @@ public class GetMap extends HttpServlet {
         return new Long(raw);
     }
 
+    /* the parameters that determine a map */
+    private static class MapParams
+    {
+        public final long from, to;
+        public final String area;
+        public final int south, west, north, east, zoom;
+
+        public MapParams(long from, long to, String area, int south, int west, int north, int east, int zoom)
+        {
+            this.from = from;
+            this.to = to;
+            this.area = area;
+            this.south = south;
+            this.west = west;
+            this.north = north;
+            this.east = east;
+            this.zoom = zoom;
+        }
+
+        /* in normal form, for use as a cache key */
+        public String toString()
+        {
+            return String.format("%d/%d/%s/%d/%d/%d/%d/%d", from, to, area, south, west, north, east, zoom);
+        }
+    }
+
     private Connection getConnection() throws NamingException, SQLException {
         Context c = (Context) (new InitialContext()).lookup("java:comp/env");
         DataSource d = (DataSource) c.lookup("jdbc/WxDB");
@@ -0,0 +1,41 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * An in-memory cache of decoded images, bounded by the number of bytes
+ * their pixels occupy.
+ */
+public class ImageCache<K> extends LruCache<K, Image>
+{
+    /**
+     * Constructor.
+     *
+     * @param maxBytes  Maximum number of bytes to cache
+     */
+    public ImageCache(long maxBytes)
+    {
+        super(maxBytes);
+    }
+
+    /**
+     * Returns the approximate number of bytes occupied by an image.
+     *
+     * @param value     Image
+     * @return          Size in bytes
+     */
+    protected long sizeOf(Image value)
+    {
+        if (value instanceof BufferedImage) {
+            DataBuffer db = ((BufferedImage) value).getRaster().getDataBuffer();
+            return (long) db.getSize() * (long) db.getNumBanks()
+                * (long) DataBuffer.getDataTypeSize(db.getDataType()) / 8L;
+        }
+        /* unknown, so assume the worst: 4 bytes per pixel */
+        return 4L * (long) value.getWidth(null) * (long) value.getHeight(null);
+    }
+}
@@ -0,0 +1,221 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * A pool of reusable images to render maps into, so that each map
+ * rendered need not allocate (and soon discard) megabytes of pixels.
+ * Images are leased, and must be returned by closing the lease (which
+ * is best done with try-with-resources); the image must not be used
+ * after that. Leases that are never closed are detected (when they are
+ * garbage collected) and logged. At most a fixed number of unused
+ * images are kept; any more are left to the garbage collector.
+ *
+ * Pooled images are all the same (maximum) size; a smaller image leased
+ * from the pool shares its pixels with a pooled one.
+ */
+public class ImagePool
+{
+    private static final Logger LOGGER = Logger.getLogger(ImagePool.class.getCanonicalName());
+    public static final int MAX_IDLE = 8;
+
+    private int width, height;
+    private ArrayBlockingQueue<BufferedImage> idle;
+    private ReferenceQueue<Lease> collected;
+    private Set<LeaseReference> outstanding;
+    private AtomicLong leases, allocations, leaks;
+
+    /**
+     * Constructor.
+     *
+     * @param width     Width of pooled images
+     * @param height    Height of pooled images
+     * @param maxIdle   Maximum number of unused images to keep
+     */
+    public ImagePool(int width, int height, int maxIdle)
+    {
+        this.width = width;
+        this.height = height;
+        idle = new ArrayBlockingQueue<BufferedImage>(Math.max(1, maxIdle));
+        collected = new ReferenceQueue<Lease>();
+        outstanding = ConcurrentHashMap.newKeySet();
+        leases = new AtomicLong(0L);
+        allocations = new AtomicLong(0L);
+        leaks = new AtomicLong(0L);
+    }
+
+    /**
+     * Lease an (RGB, and cleared to black) image. If it is bigger than
+     * pooled images are, it is simply allocated.
+     *
+     * @param w         Width of image
+     * @param h         Height of image
+     * @return          Lease on the image
+     */
+    public Lease lease(int w, int h)
+    {
+        reap();
+        leases.incrementAndGet();
+        if (w > width || h > height) {
+            allocations.incrementAndGet();
+            return new Lease(null, new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB));
+        }
+        BufferedImage pooled = idle.poll();
+        if (pooled == null) {
+            allocations.incrementAndGet();
+            pooled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        } else {
+            /* only the part being leased need be cleared */
+            int[] pixels = ((DataBufferInt) pooled.getRaster().getDataBuffer()).getData();
+            for (int y = 0, start = 0; y < h; y++, start += width)
+                Arrays.fill(pixels, start, start + w, 0);
+        }
+        return new Lease(pooled, w == width && h == height ? pooled : pooled.getSubimage(0, 0, w, h));
+    }
+
+    /* notice leases that were garbage collected without being closed */
+    private void reap()
+    {
+        LeaseReference r;
+        while ((r = (LeaseReference) collected.poll()) != null) {
+            if (outstanding.remove(r)) {
+                leaks.incrementAndGet();
+                LOGGER.log(Level.WARNING, "Image leased by " + r.owner + " never returned", r.where);
+            }
+        }
+    }
+
+    /**
+     * Get number of leases made.
+     *
+     * @return          Count
+     */
+    public long getLeases()
+    {
+        return leases.get();
+    }
+
+    /**
+     * Get number of images allocated (because none were pooled).
+     *
+     * @return          Count
+     */
+    public long getAllocations()
+    {
+        return allocations.get();
+    }
+
+    /**
+     * Get number of leases never returned.
+     *
+     * @return          Count
+     */
+    public long getLeaks()
+    {
+        reap();
+        return leaks.get();
+    }
+
+    /**
+     * Get number of leases currently outstanding.
+     *
+     * @return          Count
+     */
+    public int getOutstanding()
+    {
+        reap();
+        return outstanding.size();
+    }
+
+    /**
+     * Get number of unused images pooled.
+     *
+     * @return          Count
+     */
+    public int getIdle()
+    {
+        return idle.size();
+    }
+
+    /**
+     * Summarize pool statistics.
+     *
+     * @return          Printable string
+     */
+    public String toString()
+    {
+        return String.format("%d leases, %d allocations, %d outstanding, %d leaked, %d idle",
+            getLeases(), getAllocations(), getOutstanding(), getLeaks(), getIdle());
+    }
+
+    /**
+     * A lease on an image from the pool.
+     */
+    public class Lease implements AutoCloseable
+    {
+        private BufferedImage pooled, image;
+        private LeaseReference reference;
+
+        private Lease(BufferedImage pooled, BufferedImage image)
+        {
+            this.pooled = pooled;
+            this.image = image;
+            reference = new LeaseReference(this);
+            outstanding.add(reference);
+        }
+
+        /**
+         * Get the leased image.
+         *
+         * @return      BufferedImage object
+         */
+        public BufferedImage getImage()
+        {
+            if (image == null)
+                throw new IllegalStateException("Lease already closed.");
+            return image;
+        }
+
+        /**
+         * Return the image to the pool.
+         */
+        public void close()
+        {
+            if (image == null)
+                return;
+            outstanding.remove(reference);
+            reference.clear();
+            image = null;
+            if (pooled != null)
+                idle.offer(pooled);
+            pooled = null;
+        }
+    }
+
+    /* used to detect leases that are never closed; if FINE logging is
+       enabled, remembers where each lease was made (which is costly) */
+    private class LeaseReference extends WeakReference<Lease>
+    {
+        public final String owner;
+        public final Throwable where;
+
+        public LeaseReference(Lease lease)
+        {
+            super(lease, collected);
+            owner = Thread.currentThread().getName();
+            where = LOGGER.isLoggable(Level.FINE) ? new Throwable("Lease made here") : null;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package info.koosah.wxaloftuiservlet;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Tests the ImagePool module.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class ImagePoolTest
+{
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final long GC_WAIT = 10000L;  /* ms */
+
+    private ImagePool pool;
+
+    @Before
+    public void setUp()
+    {
+        pool = new ImagePool(WIDTH, HEIGHT, 2);
+    }
+
+    @Test
+    public void reused()
+    {
+        BufferedImage first = null;
+        try (ImagePool.Lease lease = pool.lease(WIDTH, HEIGHT)) {
+            first = lease.getImage();
+            assertEquals(WIDTH, first.getWidth());
+            assertEquals(HEIGHT, first.getHeight());
+            assertEquals(1, pool.getOutstanding());
+        }
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(1, pool.getIdle());
+        try (ImagePool.Lease lease = pool.lease(WIDTH, HEIGHT)) {
+            assertSame(first, lease.getImage());
+        }
+        assertEquals(2L, pool.getLeases());
+        assertEquals(1L, pool.getAllocations());
+    }
+
+    @Test
+    public void cleared()
+    {
+        try (ImagePool.Lease lease = pool.lease(WIDTH, HEIGHT)) {
+            fill(lease.getImage(), 0xffffff);
+        }
+        try (ImagePool.Lease lease = pool.lease(WIDTH / 2, HEIGHT / 3)) {
+            BufferedImage image = lease.getImage();
+            assertEquals(WIDTH / 2, image.getWidth());
+            assertEquals(HEIGHT / 3, image.getHeight());
+            for (int y = 0; y < image.getHeight(); y++)
+                for (int x = 0; x < image.getWidth(); x++)
+                    assertEquals(String.format("pixel (%d, %d)", x, y), 0, image.getRGB(x, y) & 0xffffff);
+            fill(image, 0x123456);
+        }
+        try (ImagePool.Lease lease = pool.lease(WIDTH, HEIGHT)) {
+            BufferedImage image = lease.getImage();
+            for (int y = 0; y < image.getHeight(); y++)
+                for (int x = 0; x < image.getWidth(); x++)
+                    assertEquals(String.format("pixel (%d, %d)", x, y), 0, image.getRGB(x, y) & 0xffffff);
+        }
+        assertEquals(1L, pool.getAllocations());
+    }
+
+    @Test
+    public void oversized()
+    {
+        try (ImagePool.Lease lease = pool.lease(WIDTH + 1, HEIGHT)) {
+            assertEquals(WIDTH + 1, lease.getImage().getWidth());
+        }
+        assertEquals(0, pool.getIdle());
+        assertEquals(1L, pool.getAllocations());
+    }
+
+    @Test
+    public void closed()
+    {
+        ImagePool.Lease lease = pool.lease(WIDTH, HEIGHT);
+        lease.close();
+        lease.close();  /* harmless */
+        assertEquals(1, pool.getIdle());
+        assertEquals(0, pool.getOutstanding());
+        try {
+            lease.getImage();
+            fail("image usable after lease closed");
+        } catch (IllegalStateException e) {
+            /* expected */
+        }
+    }
+
+    @Test
+    public void idleLimit()
+    {
+        ImagePool.Lease[] leases = new ImagePool.Lease[4];
+        for (int i = 0; i < leases.length; i++)
+            leases[i] = pool.lease(WIDTH, HEIGHT);
+        assertEquals(4, pool.getOutstanding());
+        for (ImagePool.Lease lease : leases)
+            lease.close();
+        assertEquals(2, pool.getIdle());
+        assertEquals(0L, pool.getLeaks());
+    }
+
+    @Test
+    public void leaked() throws InterruptedException
+    {
+        pool.lease(WIDTH, HEIGHT);  /* never closed */
+        try (ImagePool.Lease lease = pool.lease(WIDTH, HEIGHT)) {
+            assertEquals(WIDTH, lease.getImage().getWidth());
+            long deadline = System.currentTimeMillis() + GC_WAIT;
+            while (pool.getLeaks() == 0L && System.currentTimeMillis() < deadline) {
+                System.gc();
+                Thread.sleep(10L);
+            }
+            assertEquals(1L, pool.getLeaks());
+            assertEquals(1, pool.getOutstanding());
+        }
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(1L, pool.getLeaks());
+    }
+
+    private void fill(BufferedImage image, int rgb)
+    {
+        for (int y = 0; y < image.getHeight(); y++)
+            for (int x = 0; x < image.getWidth(); x++)
+                image.setRGB(x, y, rgb);
+    }
+}
@@ -0,0 +1,132 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * A histogram of latencies, in the style of HdrHistogram: buckets are
+ * exponentially sized (each power of two being split into a number of
+ * equal sub-buckets), so that relative precision is constant from
+ * microseconds to minutes. Recording a latency is lock-free and
+ * allocates nothing, so this may be used on hot paths.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean
+{
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;  /* ~6% precision */
+    private static final int MAX_EXP = 36;  /* 2**36 us is about 19 hours */
+    private static final int BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private AtomicLongArray counts;
+    private AtomicLong total, sum, max;
+
+    public LatencyHistogram()
+    {
+        counts = new AtomicLongArray(BUCKETS);
+        total = new AtomicLong(0L);
+        sum = new AtomicLong(0L);
+        max = new AtomicLong(0L);
+    }
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos     Latency in nanoseconds
+     */
+    public void record(long nanos)
+    {
+        long micros = Math.max(0L, TimeUnit.NANOSECONDS.toMicros(nanos));
+        counts.incrementAndGet(bucket(micros));
+        total.incrementAndGet();
+        sum.addAndGet(micros);
+        long m;
+        while (micros > (m = max.get()) && !max.compareAndSet(m, micros))
+            ;
+    }
+
+    private static int bucket(long micros)
+    {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+        int exp = Math.min(MAX_EXP, 63 - Long.numberOfLeadingZeros(micros));
+        int sub = (int) Math.min(SUB_BUCKETS - 1, (micros >> (exp - SUB_BITS)) - SUB_BUCKETS);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /* highest latency, in microseconds, that falls in a bucket */
+    private static long highest(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exp - SUB_BITS)) - 1L;
+    }
+
+    /**
+     * Get the latency that a fraction of recorded latencies do not
+     * exceed (to within the precision of our buckets).
+     *
+     * @param fraction  Fraction, e.g. 0.99 for the 99th percentile
+     * @return          Latency in milliseconds
+     */
+    public double getPercentile(double fraction)
+    {
+        long n = total.get();
+        if (n == 0L)
+            return 0.0;
+        long wanted = Math.max(1L, (long) Math.ceil(fraction * n));
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= wanted)
+                return Math.min(highest(i), max.get()) / 1000.0;
+        }
+        return max.get() / 1000.0;
+    }
+
+    public long getCount()
+    {
+        return total.get();
+    }
+
+    public double getMean()
+    {
+        long n = total.get();
+        return n == 0L ? 0.0 : sum.get() / 1000.0 / n;
+    }
+
+    public double getMax()
+    {
+        return max.get() / 1000.0;
+    }
+
+    public double getMedian()
+    {
+        return getPercentile(0.5);
+    }
+
+    public double get90thPercentile()
+    {
+        return getPercentile(0.9);
+    }
+
+    public double get99thPercentile()
+    {
+        return getPercentile(0.99);
+    }
+
+    /**
+     * Summarize the histogram.
+     *
+     * @return          Printable string
+     */
+    public String toString()
+    {
+        return String.format("%d recorded, mean %.3f ms, p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms",
+            getCount(), getMean(), getMedian(), get90thPercentile(), get99thPercentile(), getMax());
+    }
+}
@@ -0,0 +1,16 @@
+package info.koosah.wxaloftuiservlet;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * JMX view of a LatencyHistogram. Latencies are in milliseconds.
+ */
+public interface LatencyHistogramMBean
+{
+    public long getCount();
+    public double getMean();
+    public double getMax();
+    public double getMedian();
+    public double get90thPercentile();
+    public double get99thPercentile();
+}
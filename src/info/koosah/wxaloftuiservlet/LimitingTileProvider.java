@@ -1,14 +1,8 @@
 package info.koosah.wxaloftuiservlet;
 
 import java.awt.Image;
-import java.awt.image.RenderedImage;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.FileLock;
-import java.util.concurrent.locks.Lock;
-import javax.imageio.ImageIO;
+import java.io.InterruptedIOException;
 
 /**
  * @author n5jrn@me.com
@@ -18,18 +12,48 @@ import javax.imageio.ImageIO;
  * Note that it is simpler to just furnish a null provider if you want
  * to prevent any tile requests; this class is intended for imposing
  * nonzero limits.
+ *
+ * Limits are imposed by a token bucket, which may be shared by many
+ * providers to impose a global limit. Requests wait (up to a point) for
+ * a token to become available. This class is meant to be placed directly
+ * in front of the provider that does the actual fetching (or of the
+ * BreakerTileProvider guarding it), i.e. behind any caches, so that only
+ * real upstream requests are limited.
  */
-public class LimitingTileProvider extends TileProvider
+public class LimitingTileProvider extends FilterTileProvider
 {
+    TokenBucket bucket;
+    long maxWait;
+    int reserve;
 
-    int limit, requests;
-    TileProvider orig;
+    /**
+     * Constructor.
+     *
+     * @param bucket    Token bucket imposing the limits
+     * @param maxWait   Maximum milliseconds to wait for a token
+     * @param orig      Provider being limited
+     */
+    public LimitingTileProvider(TokenBucket bucket, long maxWait, TileProvider orig)
+    {
+        this(bucket, maxWait, 0, orig);
+    }
 
-    public LimitingTileProvider(int limit, TileProvider orig)
+    /**
+     * Constructor, for background work that should only use spare
+     * tokens (see TokenBucket.acquireSpare).
+     *
+     * @param bucket    Token bucket imposing the limits
+     * @param maxWait   Maximum milliseconds to wait for a token
+     * @param reserve   Tokens to leave for others, or 0 to simply wait
+     *                  in line for one
+     * @param orig      Provider being limited
+     */
+    public LimitingTileProvider(TokenBucket bucket, long maxWait, int reserve, TileProvider orig)
     {
-        this.orig = orig;
-        this.limit = limit;
-        this.requests = 0;
+        super(orig);
+        this.bucket = bucket;
+        this.maxWait = maxWait;
+        this.reserve = reserve;
     }
 
     /**
@@ -41,22 +65,48 @@ public class LimitingTileProvider extends TileProvider
      */
     public Image getTile(int x, int y, int z) throws IOException
     {
-        if (requests++ >= limit)
-            throw new TileLimitException(String.format("Limit of %d tiles exceeded", limit));
+        count();
         return orig.getTile(x, y, z);
     }
 
     /**
-     * Returns the URL of a tile for the specified column, row, and
-     * zoom level.
+     * Gets the encoded tile for the specified column, row, and zoom level.
      * @param x         Column
      * @param y         Row
      * @param z         Zoom level
-     * @return          URL of the tile
+     * @return          Encoded tile
      */
-    public String getTileUrl(int x, int y, int z)
+    public byte[] getTileBytes(int x, int y, int z) throws IOException
     {
-        return orig.getTileUrl(x, y, z);
+        count();
+        return orig.getTileBytes(x, y, z);
+    }
+
+    /**
+     * Gets the encoded tile for the specified column, row, and zoom level,
+     * unless it has not changed since a previous fetch.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @param etag      Entity tag from previous fetch, or null
+     * @param lastModified Last-modified time from previous fetch, or 0
+     * @return          TileResponse object
+     */
+    public TileResponse getTileIfChanged(int x, int y, int z, String etag, long lastModified) throws IOException
+    {
+        count();
+        return orig.getTileIfChanged(x, y, z, etag, lastModified);
+    }
+
+    private void count() throws IOException
+    {
+        try {
+            if (!(reserve > 0 ? bucket.acquireSpare(reserve, maxWait) : bucket.acquire(maxWait)))
+                throw new TileLimitException(String.format("Tile rate limit exceeded (waited over %d ms)", maxWait));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for tile rate limit");
+        }
     }
 
     /**
@@ -0,0 +1,184 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * A least-recently-used cache that is bounded by the total size of the
+ * things in it rather than by their number. Subclasses decide how big
+ * each value is. Safe for use by multiple threads.
+ */
+public abstract class LruCache<K, V>
+{
+    private LinkedHashMap<K, V> entries;
+    private long maxSize, size;
+    private long hits, misses, evictions;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize   Maximum total size of all cached values
+     */
+    public LruCache(long maxSize)
+    {
+        this.entries = new LinkedHashMap<K, V>(16, 0.75f, true);
+        this.maxSize = maxSize;
+        this.size = 0L;
+        hits = misses = evictions = 0L;
+    }
+
+    /**
+     * Returns the size of a value, in whatever units maxSize is in.
+     *
+     * @param value     Value
+     * @return          Size
+     */
+    protected abstract long sizeOf(V value);
+
+    /**
+     * Look something up, marking it as recently used if it is found.
+     *
+     * @param key       Key
+     * @return          Cached value, or null if not cached
+     */
+    public synchronized V get(K key)
+    {
+        V ret = entries.get(key);
+        if (ret == null)
+            misses++;
+        else
+            hits++;
+        return ret;
+    }
+
+    /**
+     * See if something is cached, without marking it as used (or counting
+     * a hit or miss).
+     *
+     * @param key       Key
+     * @return          True if cached
+     */
+    public synchronized boolean contains(K key)
+    {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Add something, evicting least-recently-used things as needed to
+     * make room for it. Values that could never fit are ignored.
+     *
+     * @param key       Key
+     * @param value     Value
+     */
+    public synchronized void put(K key, V value)
+    {
+        long vsize = sizeOf(value);
+        if (vsize > maxSize)
+            return;
+        V old = entries.put(key, value);
+        if (old != null)
+            size -= sizeOf(old);
+        size += vsize;
+        Iterator<V> it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            V victim = it.next();
+            it.remove();
+            size -= sizeOf(victim);
+            evictions++;
+        }
+    }
+
+    /**
+     * Remove something.
+     *
+     * @param key       Key
+     */
+    public synchronized void remove(K key)
+    {
+        V old = entries.remove(key);
+        if (old != null)
+            size -= sizeOf(old);
+    }
+
+    /**
+     * Remove everything.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        size = 0L;
+    }
+
+    /**
+     * Get maximum total size.
+     *
+     * @return          Maximum size
+     */
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Get current total size.
+     *
+     * @return          Size
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Get number of cached values.
+     *
+     * @return          Count
+     */
+    public synchronized int getCount()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Get number of lookups that found something.
+     *
+     * @return          Count
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Get number of lookups that found nothing.
+     *
+     * @return          Count
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Get number of values evicted to make room for others.
+     *
+     * @return          Count
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * Summarize cache statistics.
+     *
+     * @return          Printable string
+     */
+    public synchronized String toString()
+    {
+        return String.format("%d entries, size %d of %d, %d hits, %d misses, %d evictions",
+            entries.size(), size, maxSize, hits, misses, evictions);
+    }
+}
@@ -23,6 +23,9 @@ public class MakeMap {
     public static final String MYNAME = "MakeMap";
     private static final int PIXELS = 512;  /* size of our square image */
     private static final String TYPE = "png";
+    private static final double RATE = 2.0;  /* upstream tiles per second */
+    private static final int BURST = 16;  /* upstream tiles at once */
+    private static final long WAIT = 10000L;  /* ms to wait for upstream */
 
     public static void main(String[] args) throws Exception
     {
@@ -44,7 +47,8 @@ public class MakeMap {
         File home = new File(System.getenv("HOME"));
         File temp = new File(home, "temp");
         File cache = new File(temp, "cache");
-        TileProvider p = new LimitingTileProvider(16, new CachingTileProvider(cache, new OsmTileProvider()));
+        TileProvider p = new CachingTileProvider(cache,
+            new LimitingTileProvider(new TokenBucket(RATE, BURST), WAIT, new OsmTileProvider()));
 
         // Request map
         double[] bounds = new double[] { south, west, north, east };
@@ -1,9 +1,10 @@
 package info.koosah.wxaloftuiservlet;
 
-import java.awt.Graphics;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -33,8 +34,16 @@ public class Map {
     private int numPixels;
     // Starting tile for rendering this map
     private Tile start;
+    // Provides tile images
+    private TileProvider provider;
     // Image we render
     private BufferedImage image;
+    // Fetches tile images for rendering
+    private TileFetcher fetcher;
+    // Makes stand-ins for tiles that cannot be fetched, if not null
+    private OverzoomTileProvider fallback;
+    // Whether any stand-ins were used in rendering
+    private boolean degraded;
 
     /**
      * A raster-based map, with extents specified in world pixels. Each
@@ -132,6 +141,7 @@ public class Map {
 
         /* get a starting tile */
         this.start = new Tile(getTile(west), getTile(north), zoom, p);
+        this.provider = p;
 
         /* get lat/long extents. note that these probably won't exactly match
            any passed to our lat/long constructor, due to pixellation */
@@ -142,6 +152,9 @@ public class Map {
 
         /* we haven't rendered anything yet */
         image = null;
+        fetcher = TileFetcher.getDefault();
+        fallback = null;
+        degraded = false;
     }
 
     private void initZoom(int zoom)
@@ -260,49 +273,137 @@ public class Map {
         return image;
     }
 
-    private BufferedImage makeImage() throws IOException
+    /**
+     * Set the fetcher used to get tile images when rendering. By default,
+     * a shared one with default settings is used.
+     *
+     * @param fetcher   TileFetcher object
+     */
+    public void setFetcher(TileFetcher fetcher)
+    {
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * Set the provider used to make stand-ins for tiles that could not be
+     * fetched (or not in time). By default there is none, and failing to
+     * fetch any tile makes rendering fail.
+     *
+     * @param fallback  OverzoomTileProvider object
+     */
+    public void setFallback(OverzoomTileProvider fallback)
+    {
+        this.fallback = fallback;
+    }
+
+    /**
+     * See if the rendered map is degraded, i.e. had any stand-ins used
+     * in place of its tiles.
+     *
+     * @return          True if degraded
+     */
+    public boolean isDegraded()
+    {
+        return degraded;
+    }
+
+    /**
+     * Get the tiles needed to render this map, in row-major order,
+     * starting with the northwest tile.
+     *
+     * @return          List of tiles
+     */
+    public List<Tile> getTiles()
+    {
+        int columns = countColumns();
+        int rows = countRows();
+        ArrayList<Tile> ret = new ArrayList<Tile>(columns * rows);
+        int x0 = start.getX();
+        int y0 = start.getY();
+        int numTiles = start.getNumTiles();
+        /* make each tile directly, not by stepping from its neighbor */
+        for (int i = 0; i < rows; i++)
+            for (int j = 0; j < columns; j++)
+                ret.add(i == 0 && j == 0 ? start : new Tile((x0 + j) % numTiles, y0 + i, zoom, provider));
+        return ret;
+    }
+
+    private int countColumns()
     {
-        // Make a raw image
-        BufferedImage rawImage = new BufferedImage(
-            calcSize(eastFrom(west, east, zoom)), calcSize(south - north),
-            BufferedImage.TYPE_INT_RGB);
-        Graphics g = rawImage.getGraphics();
-        try {
-            // Tile it
-            Tile y = start;
-            int xi = 0, yi = 0;
-            int yn = y.north();
-            do {
-                g.drawImage(y.getImage(), xi, yi, null);
-                Tile x = y;
-                int xe = y.east();
-                while (westOf(xe, east, zoom)) {
-                    x = x.eastTile();
-                    xi += TILE_SIZE;
-                    xe = normalizeX(xe + TILE_SIZE, zoom);
-                    g.drawImage(x.getImage(), xi, yi, null);
-                }
-                xi = 0;
-                yi += TILE_SIZE;
-                yn += TILE_SIZE;
-                y = y.southTile();
-            } while (northOf(yn, south));
-        } finally {
-            g.dispose();
+        int ret = 1;
+        int xe = start.east();
+        while (westOf(xe, east, zoom)) {
+            ret++;
+            xe = normalizeX(xe + TILE_SIZE, zoom);
         }
+        return ret;
+    }
+
+    private int countRows()
+    {
+        int ret = 0;
+        int yn = start.north();
+        do {
+            ret++;
+            yn += TILE_SIZE;
+        } while (northOf(yn, south));
+        return ret;
+    }
 
-        // Crop it and return our image
+    private BufferedImage makeImage() throws IOException
+    {
+        BufferedImage ret = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_RGB);
+        render(ret);
+        return ret;
+    }
+
+    /**
+     * Render the map into an image supplied by the caller (e.g. one
+     * leased from an ImagePool), which must be exactly the size of the
+     * map. Unlike getImage, this renders every time it is called.
+     *
+     * @param image     Image to render into
+     */
+    public void render(BufferedImage image) throws IOException
+    {
+        if (image.getWidth() != getWidth() || image.getHeight() != getHeight())
+            throw new IllegalArgumentException(String.format("image is %dx%d, map is %dx%d",
+                image.getWidth(), image.getHeight(), getWidth(), getHeight()));
+
+        // Get all the tile images first, fetching them in parallel
+        List<Tile> tiles = getTiles();
+        int columns = countColumns();
+        Image[] images = fallback == null ? fetcher.fetch(tiles) : fetcher.fetch(tiles, fallback);
+        for (Image i : images)
+            degraded |= TileImages.isDegraded(i);
+
+        // Tile the image, each tile offset by where the map starts in the
+        // northwest one (so that only the visible part of each tile gets
+        // drawn)
         int cnorth = north - start.north();
         int cwest = eastFrom(start.west(), west, zoom);
-        int cwidth = eastFrom(west, east, zoom);
-        int cheight = south - north;
-        return rawImage.getSubimage(cwest, cnorth, cwidth, cheight);
+        for (int i = 0; i < images.length; i++)
+            TileImages.blit(images[i], image, (i % columns) * TILE_SIZE - cwest, (i / columns) * TILE_SIZE - cnorth);
     }
 
-    private int calcSize(int pixels)
+    /**
+     * Get width of the map.
+     *
+     * @return          Width in pixels
+     */
+    public int getWidth()
+    {
+        return eastFrom(west, east, zoom);
+    }
+
+    /**
+     * Get height of the map.
+     *
+     * @return          Height in pixels
+     */
+    public int getHeight()
     {
-        final int SLOP = 2;
-        return TILE_SIZE * ((pixels - 1) / TILE_SIZE + 1 + SLOP);
+        return south - north;
     }
 
     /**
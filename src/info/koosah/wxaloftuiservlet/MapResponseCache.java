@@ -0,0 +1,174 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * An in-memory cache of complete (encoded) GetMap responses, keyed by
+ * the request's parameters, and bounded by the number of bytes of image
+ * data cached. Each response has a strong entity tag, derived from its
+ * contents, so that a browser that already has a map can be told so
+ * (with a 304 Not Modified) even after the cached copy has expired and
+ * had to be made again. Responses expire, since newly-arrived
+ * observations may belong on a map.
+ */
+public class MapResponseCache extends LruCache<String, MapResponseCache.Entry>
+{
+    public static final long MAX_BYTES = 16L * 1024L * 1024L;
+    public static final long TTL = 5L * 60L * 1000L;  /* 5 minutes */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int TAG_BYTES = 16;
+
+    private long ttl;
+
+    /**
+     * Constructor.
+     *
+     * @param maxBytes  Maximum number of bytes to cache
+     * @param ttl       Milliseconds a response remains fresh
+     */
+    public MapResponseCache(long maxBytes, long ttl)
+    {
+        super(maxBytes);
+        this.ttl = ttl;
+    }
+
+    /**
+     * Returns the approximate number of bytes occupied by a response.
+     *
+     * @param value     Entry
+     * @return          Size in bytes
+     */
+    protected long sizeOf(Entry value)
+    {
+        return value.data.length + value.etag.length();
+    }
+
+    /**
+     * Look up a response, discarding it if it has expired.
+     *
+     * @param key       Key
+     * @return          Entry, or null if no fresh one is cached
+     */
+    public Entry getFresh(String key)
+    {
+        Entry ret = get(key);
+        if (ret != null && ret.getAge() >= ttl) {
+            remove(key);
+            return null;
+        }
+        return ret;
+    }
+
+    /**
+     * Cache a response.
+     *
+     * @param key       Key
+     * @param data      Encoded image
+     * @return          Entry made for it
+     */
+    public Entry put(String key, byte[] data)
+    {
+        Entry ret = new Entry(data);
+        put(key, ret);
+        return ret;
+    }
+
+    /**
+     * Get the number of milliseconds a response remains fresh.
+     *
+     * @return          Milliseconds
+     */
+    public long getTtl()
+    {
+        return ttl;
+    }
+
+    /**
+     * Make a strong entity tag for some data.
+     *
+     * @param data      Data
+     * @return          Entity tag, complete with quotes
+     */
+    public static String makeEtag(byte[] data)
+    {
+        byte[] digest = null;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            /* every Java platform is required to support SHA-256 */
+            throw new RuntimeException(e);
+        }
+        StringBuilder ret = new StringBuilder(TAG_BYTES * 2 + 2);
+        ret.append('"');
+        for (int i = 0; i < TAG_BYTES; i++)
+            ret.append(HEX[(digest[i] >> 4) & 0xf]).append(HEX[digest[i] & 0xf]);
+        return ret.append('"').toString();
+    }
+
+    /**
+     * See if an entity tag matches an If-None-Match header.
+     *
+     * @param header    Header value, or null if none
+     * @param etag      Entity tag
+     * @return          True if it matches
+     */
+    public static boolean matches(String header, String etag)
+    {
+        if (header == null)
+            return false;
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            /* If-None-Match uses the weak comparison function */
+            if (candidate.startsWith("W/"))
+                candidate = candidate.substring(2);
+            if (candidate.equals("*") || candidate.equals(etag))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * A cached response.
+     */
+    public static class Entry
+    {
+        private byte[] data;
+        private String etag;
+        private long time;
+
+        /**
+         * Constructor.
+         *
+         * @param data  Encoded image
+         */
+        public Entry(byte[] data)
+        {
+            this.data = data;
+            this.etag = makeEtag(data);
+            this.time = System.currentTimeMillis();
+        }
+
+        public byte[] getData()
+        {
+            return data;
+        }
+
+        public String getEtag()
+        {
+            return etag;
+        }
+
+        /**
+         * Get the age of the response.
+         *
+         * @return      Milliseconds since it was made
+         */
+        public long getAge()
+        {
+            return System.currentTimeMillis() - time;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.awt.Image;
+import java.io.IOException;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * A tiles provider that keeps recently-used decoded tiles in memory, in
+ * front of another one (typically a CachingTileProvider). The memory
+ * cache is passed in so that it may be shared between providers; hits
+ * cost neither system calls nor PNG decoding. Degraded tiles (stand-ins
+ * made when the real tile was unavailable) are not kept.
+ */
+public class MemoryTileProvider extends FilterTileProvider
+{
+    ImageCache<Long> cache;
+
+    public MemoryTileProvider(ImageCache<Long> cache, TileProvider orig)
+    {
+        super(orig);
+        this.cache = cache;
+    }
+
+    /**
+     * Gets the tile for the specified column, row, and zoom level.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          Image of the tile
+     */
+    public Image getTile(int x, int y, int z) throws IOException
+    {
+        Long key = TileKey.make(x, y, z);
+        Image ret = cache.get(key);
+        if (ret == null) {
+            ret = orig.getTile(x, y, z);
+            if (!TileImages.isDegraded(ret))
+                cache.put(key, ret);
+        }
+        return ret;
+    }
+}
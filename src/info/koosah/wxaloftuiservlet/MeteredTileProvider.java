@@ -0,0 +1,103 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.awt.Image;
+import java.io.IOException;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * A tiles provider that gathers statistics (see TileMetrics) about
+ * another one. To find out about a whole stack of providers, put one of
+ * these in front of each layer of interest; to tell hits from misses,
+ * each one notes whether another one was called (on the same thread)
+ * while it was waiting. Nothing is allocated per call.
+ */
+public class MeteredTileProvider extends FilterTileProvider
+{
+    /* number of metered calls made so far on each thread */
+    private static final ThreadLocal<long[]> CALLS = ThreadLocal.withInitial(() -> new long[1]);
+
+    TileMetrics metrics;
+
+    /**
+     * Constructor.
+     *
+     * @param metrics   Where to record statistics
+     * @param orig      Provider being metered
+     */
+    public MeteredTileProvider(TileMetrics metrics, TileProvider orig)
+    {
+        super(orig);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gets the tile for the specified column, row, and zoom level.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          Image of the tile
+     */
+    public Image getTile(int x, int y, int z) throws IOException
+    {
+        long[] calls = CALLS.get();
+        long before = ++calls[0];
+        long start = System.nanoTime();
+        try {
+            Image ret = orig.getTile(x, y, z);
+            metrics.success(calls[0] == before, 0L, System.nanoTime() - start);
+            return ret;
+        } catch (IOException|RuntimeException e) {
+            metrics.failure(e, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the encoded tile for the specified column, row, and zoom level.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          Encoded tile
+     */
+    public byte[] getTileBytes(int x, int y, int z) throws IOException
+    {
+        long[] calls = CALLS.get();
+        long before = ++calls[0];
+        long start = System.nanoTime();
+        try {
+            byte[] ret = orig.getTileBytes(x, y, z);
+            metrics.success(calls[0] == before, ret.length, System.nanoTime() - start);
+            return ret;
+        } catch (IOException|RuntimeException e) {
+            metrics.failure(e, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the encoded tile for the specified column, row, and zoom level,
+     * unless it has not changed since a previous fetch.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @param etag      Entity tag from previous fetch, or null
+     * @param lastModified Last-modified time from previous fetch, or 0
+     * @return          TileResponse object
+     */
+    public TileResponse getTileIfChanged(int x, int y, int z, String etag, long lastModified) throws IOException
+    {
+        long[] calls = CALLS.get();
+        long before = ++calls[0];
+        long start = System.nanoTime();
+        try {
+            TileResponse ret = orig.getTileIfChanged(x, y, z, etag, lastModified);
+            metrics.success(calls[0] == before, ret.isModified() ? ret.getData().length : 0L,
+                System.nanoTime() - start);
+            return ret;
+        } catch (IOException|RuntimeException e) {
+            metrics.failure(e, System.nanoTime() - start);
+            throw e;
+        }
+    }
+}
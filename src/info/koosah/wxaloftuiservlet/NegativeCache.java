@@ -0,0 +1,84 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * Remembers, for a short time, which keys recently failed, so that we
+ * need not keep retrying (and waiting for) things that are not going to
+ * work. Expired keys are forgotten lazily, and swept out whenever the
+ * cache grows past a set size.
+ */
+public class NegativeCache<K>
+{
+    public static final long TTL = 30000L;  /* milliseconds */
+    public static final int MAX_SIZE = 10000;
+
+    private ConcurrentHashMap<K, Long> expiries;
+    private long ttl;
+    private int maxSize;
+
+    /**
+     * Constructor.
+     *
+     * @param ttl       Milliseconds to remember a failure
+     * @param maxSize   Sweep out expired keys past this many
+     */
+    public NegativeCache(long ttl, int maxSize)
+    {
+        this.expiries = new ConcurrentHashMap<K, Long>();
+        this.ttl = ttl;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Remember that something failed.
+     *
+     * @param key       What failed
+     */
+    public void put(K key)
+    {
+        long now = System.currentTimeMillis();
+        expiries.put(key, now + ttl);
+        if (expiries.size() > maxSize)
+            expiries.values().removeIf(e -> e <= now);
+    }
+
+    /**
+     * See if something recently failed.
+     *
+     * @param key       What to check
+     * @return          True if it failed, and not too long ago
+     */
+    public boolean contains(K key)
+    {
+        Long expiry = expiries.get(key);
+        if (expiry == null)
+            return false;
+        if (expiry > System.currentTimeMillis())
+            return true;
+        expiries.remove(key, expiry);
+        return false;
+    }
+
+    /**
+     * Forget that something failed.
+     *
+     * @param key       What to forget
+     */
+    public void remove(K key)
+    {
+        expiries.remove(key);
+    }
+
+    /**
+     * Get number of keys remembered (some of which may have expired).
+     *
+     * @return          Count
+     */
+    public int getSize()
+    {
+        return expiries.size();
+    }
+}
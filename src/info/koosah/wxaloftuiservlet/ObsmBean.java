@@ -42,6 +42,7 @@ public class ObsmBean
     private String mapParams, rawDuration, shortArea, longArea, sinceString;
     private String zoomIn, zoomOut;
     private String panNorth, panSouth, panEast, panWest;
+    private List<int[]> targets;
 
     private boolean hasBounds;
     private long since;
@@ -55,6 +56,7 @@ public class ObsmBean
         mapParams = rawDuration = shortArea = longArea = sinceString = null;
         zoomIn = zoomOut = null;
         panNorth = panSouth = panEast = panWest = null;
+        targets = new ArrayList<int[]>();
     }
 
     public boolean processRequest(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
@@ -279,8 +281,12 @@ public class ObsmBean
             observations.add(o);
         }
 
-        /* pan/zoom params */
+        /* pan/zoom params, and get a head start on their maps */
         setPanZoom(req.getSession());
+        TileStack stack = (TileStack) req.getServletContext().getAttribute(TileStack.ATTRIBUTE);
+        TileSpeculator speculator = stack == null ? null : stack.getSpeculator();
+        if (speculator != null)
+            speculator.speculate(req.getSession().getId(), areaId, targets);
 
         /* set mapParams and return */
         mapParams = String.format("?from=%d&to=%d&area=%d&south=%d&west=%d&north=%d&east=%d&zoom=%d",
@@ -289,7 +295,8 @@ public class ObsmBean
     }
 
     /* we just leave the instance variables alone if an operation is
-       not pertinent (the constructor has already nulled them for us)
+       not pertinent (the constructor has already nulled them for us);
+       the bounds of each pertinent operation are added to targets
        NOTE: this logic assumes width and height are multiples of 4 */
     private void setPanZoom(HttpSession sess)
     {
@@ -312,6 +319,7 @@ public class ObsmBean
             int neast = normalizeX((east << 1) - margin, nzoom);
             int nwest = normalizeX((west << 1) + margin, nzoom);
             zoomIn = String.format(template, nnorth, nsouth, neast, nwest, nzoom);
+            targets.add(new int[] { nsouth, nwest, nnorth, neast, nzoom });
         }
         if (zoom > zoomLimit) {
             int margin = GetMap.PIXELS / 4;
@@ -341,6 +349,7 @@ public class ObsmBean
                 neast = normalizeX(wlimit + GetMap.PIXELS, nzoom);
             }
             zoomOut = String.format(template, nnorth, nsouth, neast, nwest, nzoom);
+            targets.add(new int[] { nsouth, nwest, nnorth, neast, nzoom });
         }
 
         /* pans */
@@ -351,6 +360,7 @@ public class ObsmBean
             int nnorth = north - amount;
             int nsouth = south - amount;
             panNorth = String.format(template, nnorth, nsouth, east, west, zoom);
+            targets.add(new int[] { nsouth, west, nnorth, east, zoom });
         }
         limit = toZoom(southLimit, zoomLimit, zoom);
         if (south < limit) {
@@ -358,6 +368,7 @@ public class ObsmBean
             int nnorth = north + amount;
             int nsouth = south + amount;
             panSouth = String.format(template, nnorth, nsouth, east, west, zoom);
+            targets.add(new int[] { nsouth, west, nnorth, east, zoom });
         }
         limit = toZoom(westLimit, zoomLimit, zoom);
         if (eastOf(west, limit, zoom)) {
@@ -365,6 +376,7 @@ public class ObsmBean
             int neast = normalizeX(east - amount, zoom);
             int nwest = normalizeX(west - amount, zoom);
             panWest = String.format(template, north, south, neast, nwest, zoom);
+            targets.add(new int[] { south, nwest, north, neast, zoom });
         }
         limit = toZoom(eastLimit, zoomLimit, zoom);
         if (westOf(east, limit, zoom)) {
@@ -372,6 +384,7 @@ public class ObsmBean
             int neast = normalizeX(east + amount, zoom);
             int nwest = normalizeX(west + amount, zoom);
             panEast = String.format(template, north, south, neast, nwest, zoom);
+            targets.add(new int[] { south, nwest, north, neast, zoom });
         }
     }
 
@@ -6,18 +6,12 @@ package info.koosah.wxaloftuiservlet;
  *
  * Provider that pesters tile.openstreetmap.org for tiles.
  */
-public class OsmTileProvider extends TileProvider
+public class OsmTileProvider extends UrlTileProvider
 {
-    /**
-     * Returns the URL of a tile for the specified column, row, and
-     * zoom level.
-     * @param x         Column
-     * @param y         Row
-     * @param z         Zoom level
-     * @return          URL of the tile
-     */
-    public String getTileUrl(int x, int y, int z)
+    public static final String TEMPLATE = "https://tile.openstreetmap.org/{z}/{x}/{y}.png";
+
+    public OsmTileProvider()
     {
-        return String.format("https://tile.openstreetmap.org/%d/%d/%d.png", z, x, y);
+        super(TEMPLATE);
     }
 }
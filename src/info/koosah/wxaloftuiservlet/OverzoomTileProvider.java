@@ -0,0 +1,106 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import static info.koosah.wxaloftuiservlet.WorldPixel.*;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * A tiles provider that, when another one (a cache) fails to supply a
+ * tile, makes a stand-in from tiles at other zoom levels that happen to
+ * be cached: preferably by enlarging the right part of the nearest
+ * cached ancestor tile, else by shrinking the four child tiles. Stand-ins
+ * are blurry or cramped, so they are marked as degraded (see TileImages)
+ * and should not be cached.
+ */
+public class OverzoomTileProvider extends FilterTileProvider
+{
+    public static final int DEPTH = 4;  /* max zoom levels to look up */
+
+    public OverzoomTileProvider(TileProvider orig)
+    {
+        super(orig);
+    }
+
+    /**
+     * Gets the tile for the specified column, row, and zoom level,
+     * or a stand-in for it.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          Image of the tile
+     */
+    public Image getTile(int x, int y, int z) throws IOException
+    {
+        try {
+            return orig.getTile(x, y, z);
+        } catch (IOException e) {
+            Image ret = synthesize(x, y, z);
+            if (ret == null)
+                throw e;
+            return ret;
+        }
+    }
+
+    /**
+     * Make a stand-in for a tile from cached tiles at other zoom levels,
+     * without fetching anything.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          Degraded image of the tile, or null if impossible
+     */
+    public BufferedImage synthesize(int x, int y, int z)
+    {
+        try {
+            BufferedImage ret = fromAncestor(x, y, z);
+            if (ret == null)
+                ret = fromChildren(x, y, z);
+            return ret == null ? null : TileImages.degrade(ret);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private BufferedImage fromAncestor(int x, int y, int z) throws IOException
+    {
+        for (int d = 1; d <= DEPTH && d <= z; d++) {
+            byte[] cached = orig.getCachedTileBytes(x >> d, y >> d, z - d);
+            if (cached == null)
+                continue;
+            int size = TILE_SIZE >> d;
+            int sx = (x - ((x >> d) << d)) * size;
+            int sy = (y - ((y >> d) << d)) * size;
+            BufferedImage ret = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = ret.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(TileImages.decode(cached), 0, 0, TILE_SIZE, TILE_SIZE,
+                    sx, sy, sx + size, sy + size, null);
+            } finally {
+                g.dispose();
+            }
+            return ret;
+        }
+        return null;
+    }
+
+    private BufferedImage fromChildren(int x, int y, int z) throws IOException
+    {
+        if (z >= MAXZOOM)
+            return null;
+        Image[] children = new Image[4];
+        for (int i = 0; i < 4; i++) {
+            byte[] cached = orig.getCachedTileBytes((x << 1) + (i & 1), (y << 1) + (i >> 1), z + 1);
+            if (cached == null)
+                return null;
+            children[i] = TileImages.decode(cached);
+        }
+        return TileImages.shrink(children);
+    }
+}
@@ -0,0 +1,149 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * Keeps the space wasted on superseded tiles in a set of packs (see
+ * PackTileProvider) within bounds, by compacting them from a background
+ * thread whenever too much of them is superseded.
+ */
+public class PackCompactor implements Runnable
+{
+    private static final Logger LOGGER = Logger.getLogger(PackCompactor.class.getCanonicalName());
+    public static final long INTERVAL = 60L * 60L * 1000L;  /* ms between checks */
+    public static final double DEAD = 0.5;  /* fraction superseded that triggers */
+    private static final long MIN_DEAD = 64L * 1024L * 1024L;  /* not worth it if less */
+
+    private PackTileProvider packs;
+    private double dead;
+    private long interval;
+    private long compactions, reclaimed;
+    private Thread thread;
+
+    /**
+     * Constructor.
+     *
+     * @param packs     Packs to compact
+     * @param dead      Fraction of their bytes superseded that triggers a
+     *                  compaction
+     * @param interval  Milliseconds between checks
+     */
+    public PackCompactor(PackTileProvider packs, double dead, long interval)
+    {
+        this.packs = packs;
+        this.dead = dead;
+        this.interval = interval;
+        this.compactions = this.reclaimed = 0L;
+        this.thread = null;
+    }
+
+    /**
+     * Start the background thread.
+     */
+    public synchronized void start()
+    {
+        if (thread != null)
+            return;
+        thread = new Thread(this, "PackCompactor");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stop the background thread. Any compaction in progress finishes
+     * first, so that the packs may be closed as soon as this returns.
+     */
+    public void stop()
+    {
+        Thread stopping = null;
+        synchronized (this) {
+            stopping = thread;
+            thread = null;
+        }
+        if (stopping == null)
+            return;
+        stopping.interrupt();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                stopping.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Background thread body.
+     */
+    public void run()
+    {
+        try {
+            while (!Thread.interrupted()) {
+                Thread.sleep(interval);
+                check();
+            }
+        } catch (InterruptedException e) {
+            /* asked to stop, so we stop */
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Tile pack compactor died", e);
+        }
+    }
+
+    /* compact if enough is superseded */
+    private void check()
+    {
+        long deadBytes = packs.getDeadBytes();
+        long total = deadBytes + packs.getLiveBytes();
+        if (deadBytes < MIN_DEAD || deadBytes < dead * total)
+            return;
+        try {
+            packs.compact();
+            synchronized (this) {
+                compactions++;
+                reclaimed += deadBytes;
+            }
+            LOGGER.log(Level.INFO, String.format("Compacted tile packs, %d bytes reclaimed", deadBytes));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to compact tile packs", e);
+        }
+    }
+
+    /**
+     * Get number of compactions done.
+     *
+     * @return          Count
+     */
+    public synchronized long getCompactions()
+    {
+        return compactions;
+    }
+
+    /**
+     * Get number of bytes reclaimed by compacting.
+     *
+     * @return          Count
+     */
+    public synchronized long getReclaimed()
+    {
+        return reclaimed;
+    }
+
+    /**
+     * Summarize compactor statistics.
+     *
+     * @return          Printable string
+     */
+    public synchronized String toString()
+    {
+        return String.format("%d compactions, %d bytes reclaimed", compactions, reclaimed);
+    }
+}
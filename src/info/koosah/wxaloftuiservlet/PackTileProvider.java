@@ -0,0 +1,729 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.awt.Image;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * A tiles provider that caches another one, like CachingTileProvider,
+ * but keeps its tiles in a few large append-only pack files instead of
+ * one file per tile. The packs are memory-mapped, so fetching a cached
+ * tile is a hash lookup plus a slice of a mapped buffer, with no system
+ * calls at all.
+ *
+ * Each pack is a sequence of records, each consisting of a header (magic
+ * number, tile key, time cached, length) followed by the encoded tile.
+ * Newer records for a tile supersede older ones. The index is rebuilt by
+ * scanning the packs when they are opened. Superseded records waste
+ * space until compact() is called (see PackCompactor).
+ *
+ * Unlike the directory cache, a set of packs must only be used by one
+ * process at a time; a lock on the directory enforces this. Within a
+ * process, callers needing a different upstream provider share one
+ * PackTileProvider via withUpstream().
+ *
+ * All I/O on the pack files (other than reading their mappings) is done
+ * by a thread of our own, since callers (e.g. TileFetcher's threads) may
+ * be interrupted, and interrupting a FileChannel closes it.
+ */
+public class PackTileProvider extends FilterTileProvider
+{
+    private static final Logger LOGGER = Logger.getLogger(PackTileProvider.class.getCanonicalName());
+    public static final long MAXLIFE = 30L * 24L * 60L * 60L * 1000L;  /* 30 days */
+    private static final long MAXPACK = 1L << 30;  /* bytes per pack */
+    private static final int MAGIC = 0x54696c65;  /* "Tile" */
+    private static final int HEADER = 4 + 8 + 8 + 4;
+    private static final String PREFIX = "tiles-";
+    private static final String SUFFIX = ".pack";
+    private static final String LOCK = "lock";
+    private static final Set<String> LOCKED = ConcurrentHashMap.newKeySet();  /* directories */
+
+    private File packDir;
+    private long maxLife;
+    private volatile ConcurrentHashMap<Long, Entry> index;
+    private ArrayList<Pack> packs;
+    private long liveBytes, deadBytes;
+    private SingleFlight<Long, byte[]> flights;
+    private Writer writer;
+    private String lockPath;
+    private FileChannel lockChannel;
+    private int nextNumber;
+    private Object compacting;
+
+    /**
+     * Constructor. Opens (creating if need be) the packs in the specified
+     * directory.
+     *
+     * @param packDir   Directory holding pack files
+     * @param orig      Provider being cached
+     */
+    public PackTileProvider(File packDir, TileProvider orig) throws IOException
+    {
+        this(packDir, MAXLIFE, orig);
+    }
+
+    /**
+     * Constructor, with a maximum tile lifetime.
+     *
+     * @param packDir   Directory holding pack files
+     * @param maxLife   Milliseconds before a cached tile is refetched
+     * @param orig      Provider being cached
+     */
+    public PackTileProvider(File packDir, long maxLife, TileProvider orig) throws IOException
+    {
+        super(orig);
+        this.packDir = packDir;
+        this.maxLife = maxLife;
+        this.index = new ConcurrentHashMap<Long, Entry>();
+        this.packs = new ArrayList<Pack>();
+        this.liveBytes = this.deadBytes = 0L;
+        this.flights = new SingleFlight<Long, byte[]>();
+        this.compacting = new Object();
+        this.writer = new Writer();
+        if (!packDir.exists())
+            packDir.mkdirs();
+        try {
+            lock();
+            File[] files = packDir.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+            Arrays.sort(files);
+            for (File f : files) {
+                Pack p = new Pack(f, writer);
+                packs.add(p);
+                scan(p);
+            }
+            this.nextNumber = packs.isEmpty() ? 0 : packs.get(packs.size() - 1).number + 1;
+        } catch (IOException|RuntimeException e) {
+            try {
+                close();
+            } catch (IOException e2) {
+                e.addSuppressed(e2);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the tile for the specified column, row, and zoom level.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          Image of the tile
+     */
+    public Image getTile(int x, int y, int z) throws IOException
+    {
+        return getTile(x, y, z, orig, flights);
+    }
+
+    private Image getTile(int x, int y, int z, TileProvider upstream, SingleFlight<Long, byte[]> flights) throws IOException
+    {
+        Entry e = index.get(TileKey.make(x, y, z));
+        if (fresh(e)) {
+            long start = System.nanoTime();
+            Image ret = ImageIO.read(new ByteBufferInputStream(e.pack.slice(e.offset, e.length)));
+            if (ret != null) {
+                ret = TileImages.toRgb(ret);
+                TileImages.getDecodeTimes().record(System.nanoTime() - start);
+                return ret;
+            }
+        }
+        return TileImages.decode(fetch(x, y, z, e, upstream, flights));
+    }
+
+    /**
+     * Gets the encoded tile for the specified column, row, and zoom level.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          Encoded tile
+     */
+    public byte[] getTileBytes(int x, int y, int z) throws IOException
+    {
+        return getTileBytes(x, y, z, orig, flights);
+    }
+
+    private byte[] getTileBytes(int x, int y, int z, TileProvider upstream, SingleFlight<Long, byte[]> flights) throws IOException
+    {
+        Entry e = index.get(TileKey.make(x, y, z));
+        if (fresh(e)) {
+            byte[] ret = new byte[e.length];
+            e.pack.slice(e.offset, e.length).get(ret);
+            return ret;
+        }
+        return fetch(x, y, z, e, upstream, flights);
+    }
+
+    /**
+     * Gets the encoded tile for the specified column, row, and zoom level
+     * only if it is already cached (however old it is).
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          Encoded tile, or null if not cached
+     */
+    public byte[] getCachedTileBytes(int x, int y, int z) throws IOException
+    {
+        Entry e = index.get(TileKey.make(x, y, z));
+        if (e == null)
+            return null;
+        byte[] ret = new byte[e.length];
+        e.pack.slice(e.offset, e.length).get(ret);
+        return ret;
+    }
+
+    private boolean fresh(Entry e)
+    {
+        return e != null && (System.currentTimeMillis() - e.time) < maxLife;
+    }
+
+    /* fetch, falling back on the expired entry (if any) if that fails */
+    private byte[] fetch(int x, int y, int z, Entry stale, TileProvider upstream,
+        SingleFlight<Long, byte[]> flights) throws IOException
+    {
+        long key = TileKey.make(x, y, z);
+        try {
+            return flights.run(key, () -> {
+                /* someone may have cached it while we were looking */
+                Entry current = index.get(key);
+                if (current != stale && fresh(current)) {
+                    byte[] ret = new byte[current.length];
+                    current.pack.slice(current.offset, current.length).get(ret);
+                    return ret;
+                }
+                byte[] ret = upstream.getTileBytes(x, y, z);
+                TileImages.verify(ret);
+                put(key, System.currentTimeMillis(), ret);
+                return ret;
+            });
+        } catch (IOException e) {
+            if (stale == null)
+                throw e;
+            byte[] ret = new byte[stale.length];
+            stale.pack.slice(stale.offset, stale.length).get(ret);
+            return ret;
+        }
+    }
+
+    /**
+     * Get a provider that shares these packs, but fetches the tiles they
+     * lack from a different provider (e.g. one with different limits).
+     * Its fetches are only coalesced with each other, so that a failure
+     * of one provider is never handed to callers of another.
+     *
+     * @param upstream  Provider to fetch uncached tiles from
+     * @return          TileProvider object
+     */
+    public TileProvider withUpstream(TileProvider upstream)
+    {
+        return new View(upstream);
+    }
+
+    /**
+     * Add an encoded tile to the packs.
+     *
+     * @param key       Tile key (see TileKey)
+     * @param time      When the tile was fetched, in Java time
+     * @param data      Encoded tile
+     */
+    public synchronized void put(long key, long time, byte[] data) throws IOException
+    {
+        long length = HEADER + data.length;
+        Pack p = packs.isEmpty() ? null : packs.get(packs.size() - 1);
+        if (p == null || p.size + length > MAXPACK) {
+            p = new Pack(new File(packDir, packName(nextNumber())), writer);
+            packs.add(p);
+        }
+        Entry e = new Entry(p, p.append(key, time, data), data.length, time);
+        Entry old = index.put(key, e);
+        if (old != null) {
+            liveBytes -= HEADER + old.length;
+            deadBytes += HEADER + old.length;
+        }
+        liveBytes += length;
+    }
+
+    /**
+     * Rewrite the packs so that they contain only the newest record for
+     * each tile. Neither readers nor (except briefly, at the end) writers
+     * are blocked while this happens. Readers still using the old packs
+     * can go on doing so, since those stay mapped until they are garbage.
+     */
+    public void compact() throws IOException
+    {
+        synchronized (compacting) {
+            /* copy what is current now, without blocking additions */
+            HashMap<Long, Entry> snapshot = null;
+            synchronized (this) {
+                snapshot = new HashMap<Long, Entry>(index);
+            }
+            ArrayList<Pack> newPacks = new ArrayList<Pack>();
+            ConcurrentHashMap<Long, Entry> newIndex = new ConcurrentHashMap<Long, Entry>();
+            ArrayList<Pack> oldPacks = null;
+            try {
+                for (java.util.Map.Entry<Long, Entry> me : snapshot.entrySet())
+                    copy(me.getKey(), me.getValue(), newPacks, newIndex);
+
+                /* then catch up with what was added meanwhile, and switch */
+                synchronized (this) {
+                    for (java.util.Map.Entry<Long, Entry> me : index.entrySet())
+                        if (snapshot.get(me.getKey()) != me.getValue())
+                            copy(me.getKey(), me.getValue(), newPacks, newIndex);
+                    for (Pack np : newPacks)
+                        np.force();
+                    long live = 0L;
+                    for (Entry e : newIndex.values())
+                        live += HEADER + e.length;
+                    oldPacks = packs;
+                    packs = newPacks;
+                    index = newIndex;
+                    liveBytes = live;
+                    deadBytes = 0L;
+                }
+            } catch (IOException|RuntimeException e) {
+                for (Pack np : newPacks) {
+                    try {
+                        np.close();
+                    } catch (IOException e2) {
+                        e.addSuppressed(e2);
+                    }
+                    np.file.delete();
+                }
+                throw e;
+            }
+            for (Pack op : oldPacks) {
+                op.retire();
+                if (!op.file.delete())
+                    LOGGER.log(Level.WARNING, "Unable to delete " + op.file);
+            }
+        }
+    }
+
+    /* copy a record into the last of a list of packs being written */
+    private void copy(long key, Entry e, ArrayList<Pack> newPacks, ConcurrentHashMap<Long, Entry> newIndex) throws IOException
+    {
+        Pack p = newPacks.isEmpty() ? null : newPacks.get(newPacks.size() - 1);
+        if (p == null || p.size + HEADER + e.length > MAXPACK) {
+            p = new Pack(new File(packDir, packName(nextNumber())), writer);
+            newPacks.add(p);
+        }
+        byte[] data = new byte[e.length];
+        e.pack.slice(e.offset, e.length).get(data);
+        newIndex.put(key, new Entry(p, p.append(key, e.time, data), e.length, e.time));
+    }
+
+    private synchronized int nextNumber()
+    {
+        return nextNumber++;
+    }
+
+    /**
+     * Flush and close all packs.
+     */
+    public synchronized void close() throws IOException
+    {
+        try {
+            for (Pack p : packs)
+                p.close();
+        } finally {
+            packs.clear();
+            index = new ConcurrentHashMap<Long, Entry>();
+            writer.shutdown();
+            if (lockChannel != null) {
+                lockChannel.close();  /* releases the lock */
+                lockChannel = null;
+            }
+            if (lockPath != null) {
+                LOCKED.remove(lockPath);
+                lockPath = null;
+            }
+        }
+    }
+
+    /**
+     * Get number of tiles in the packs.
+     *
+     * @return          Count
+     */
+    public int getCount()
+    {
+        return index.size();
+    }
+
+    /**
+     * Get bytes of the packs occupied by current tiles.
+     *
+     * @return          Count
+     */
+    public synchronized long getLiveBytes()
+    {
+        return liveBytes;
+    }
+
+    /**
+     * Get bytes of the packs wasted on superseded tiles.
+     *
+     * @return          Count
+     */
+    public synchronized long getDeadBytes()
+    {
+        return deadBytes;
+    }
+
+    /* make sure no one else (in this process or another) is using our
+       packs; the former is checked first, since on some systems closing
+       any channel on a file releases all of the process's locks on it */
+    private void lock() throws IOException
+    {
+        String path = packDir.getCanonicalPath();
+        if (!LOCKED.add(path))
+            throw new IOException("Tile packs in " + packDir + " are already in use");
+        lockPath = path;
+        lockChannel = FileChannel.open(new File(packDir, LOCK).toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE);
+        if (lockChannel.tryLock() == null)
+            throw new IOException("Tile packs in " + packDir + " are in use by another process");
+    }
+
+    private static String packName(int number)
+    {
+        return String.format("%s%04d%s", PREFIX, number, SUFFIX);
+    }
+
+    /* read the records in a pack into the index, truncating any partial
+       record at the end (left by a crash in mid-write) */
+    private void scan(Pack p) throws IOException
+    {
+        ByteBuffer all = p.slice(0L, (int) p.size);
+        long offset = 0L;
+        while (offset < p.size) {
+            if (p.size - offset < HEADER) {
+                truncate(p, offset);
+                break;
+            }
+            all.position((int) offset);
+            int magic = all.getInt();
+            long key = all.getLong();
+            long time = all.getLong();
+            int length = all.getInt();
+            if (magic != MAGIC || length < 0 || offset + HEADER + length > p.size) {
+                truncate(p, offset);
+                break;
+            }
+            /* a compaction that crashed may have left older records in
+               newer packs */
+            Entry old = index.get(key);
+            if (old != null && old.time > time) {
+                deadBytes += HEADER + length;
+            } else {
+                index.put(key, new Entry(p, offset + HEADER, length, time));
+                if (old != null) {
+                    liveBytes -= HEADER + old.length;
+                    deadBytes += HEADER + old.length;
+                }
+                liveBytes += HEADER + length;
+            }
+            offset += HEADER + length;
+        }
+    }
+
+    private void truncate(Pack p, long offset) throws IOException
+    {
+        LOGGER.log(Level.WARNING, String.format("Truncating %s at %d", p.file, offset));
+        p.truncate(offset);
+    }
+
+    /* these packs, in front of another upstream provider */
+    private class View extends FilterTileProvider
+    {
+        private SingleFlight<Long, byte[]> flights;
+
+        public View(TileProvider upstream)
+        {
+            super(upstream);
+            this.flights = new SingleFlight<Long, byte[]>();
+        }
+
+        public Image getTile(int x, int y, int z) throws IOException
+        {
+            return PackTileProvider.this.getTile(x, y, z, orig, flights);
+        }
+
+        public byte[] getTileBytes(int x, int y, int z) throws IOException
+        {
+            return PackTileProvider.this.getTileBytes(x, y, z, orig, flights);
+        }
+
+        public byte[] getCachedTileBytes(int x, int y, int z) throws IOException
+        {
+            return PackTileProvider.this.getCachedTileBytes(x, y, z);
+        }
+    }
+
+    /* where a tile's data lives */
+    private static class Entry
+    {
+        final Pack pack;
+        final long offset;
+        final int length;
+        final long time;
+
+        public Entry(Pack pack, long offset, int length, long time)
+        {
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+            this.time = time;
+        }
+    }
+
+    /* a pack file, and a read-only mapping of it; all I/O on its channel
+       is done by the writer thread */
+    private static class Pack
+    {
+        final File file;
+        final int number;
+        private Writer writer;
+        private FileChannel channel;
+        private boolean closed;
+        private volatile MappedByteBuffer map;
+        volatile long size;
+
+        public Pack(File file, Writer writer) throws IOException
+        {
+            this.file = file;
+            String name = file.getName();
+            this.number = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+            this.writer = writer;
+            this.closed = false;
+            io(c -> {
+                size = c.size();
+                map = c.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+                return null;
+            });
+        }
+
+        /* does something with the channel, on the writer thread, (re)opening
+           it first if need be */
+        private <T> T io(ChannelOp<T> op) throws IOException
+        {
+            return writer.call(() -> {
+                if (closed)
+                    throw new ClosedChannelException();
+                if (channel == null || !channel.isOpen()) {
+                    if (channel != null)
+                        LOGGER.log(Level.WARNING, "Reopening " + file);
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                return op.run(channel);
+            });
+        }
+
+        /* returns a read-only view of part of the pack, remapping if the
+           pack has grown since it was last mapped */
+        public ByteBuffer slice(long offset, int length) throws IOException
+        {
+            MappedByteBuffer m = map;
+            if (offset + length > m.capacity())
+                m = remap();
+            ByteBuffer ret = m.duplicate();
+            ret.position((int) offset);
+            ret.limit((int) offset + length);
+            return ret.slice();
+        }
+
+        private MappedByteBuffer remap() throws IOException
+        {
+            return io(c -> {
+                if (map.capacity() < size)
+                    map = c.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+                return map;
+            });
+        }
+
+        /* appends a record, returns offset of its data */
+        public long append(long key, long time, byte[] data) throws IOException
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putLong(key).putLong(time).putInt(data.length);
+            header.flip();
+            ByteBuffer body = ByteBuffer.wrap(data);
+            return io(c -> {
+                long pos = size;
+                try {
+                    while (header.hasRemaining())
+                        pos += c.write(header, pos);
+                    while (body.hasRemaining())
+                        pos += c.write(body, pos);
+                } catch (IOException e) {
+                    /* don't leave part of a record behind */
+                    try {
+                        c.truncate(size);
+                    } catch (IOException e2) {
+                        e.addSuppressed(e2);
+                    }
+                    throw e;
+                }
+                long ret = size + HEADER;
+                size = pos;
+                return ret;
+            });
+        }
+
+        public void truncate(long offset) throws IOException
+        {
+            io(c -> {
+                c.truncate(offset);
+                size = offset;
+                return null;
+            });
+        }
+
+        public void force() throws IOException
+        {
+            io(c -> {
+                c.force(false);
+                return null;
+            });
+        }
+
+        /* map all of the pack (so that readers of it never again need its
+           channel), then close the channel for good */
+        public void retire() throws IOException
+        {
+            io(c -> {
+                if (map.capacity() < size)
+                    map = c.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+                closed = true;
+                c.close();
+                return null;
+            });
+        }
+
+        public void close() throws IOException
+        {
+            writer.call(() -> {
+                closed = true;
+                if (channel != null)
+                    channel.close();
+                return null;
+            });
+        }
+    }
+
+    private interface ChannelOp<T>
+    {
+        public T run(FileChannel channel) throws IOException;
+    }
+
+    /* does all the I/O on our packs' channels, on a thread of its own that
+       nothing ever interrupts; a FileChannel closes itself if a thread using
+       it is interrupted (as TileFetcher does to tiles not fetched in time),
+       which would leave its pack unusable */
+    private static class Writer
+    {
+        private ExecutorService executor;
+
+        public Writer()
+        {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PackTileProvider");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        /* runs a task, waiting (uninterruptibly, since it is quick) for it
+           to finish */
+        public <T> T call(Callable<T> task) throws IOException
+        {
+            Future<T> future = null;
+            try {
+                future = executor.submit(task);
+            } catch (RejectedExecutionException e) {
+                throw new ClosedChannelException();
+            }
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return future.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof IOException)
+                            throw (IOException) cause;
+                        if (cause instanceof RuntimeException)
+                            throw (RuntimeException) cause;
+                        if (cause instanceof Error)
+                            throw (Error) cause;
+                        throw new IOException(cause);
+                    }
+                }
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+
+        public void shutdown()
+        {
+            executor.shutdown();
+        }
+    }
+
+    /* lets ImageIO decode straight out of a mapped buffer */
+    private static class ByteBufferInputStream extends InputStream
+    {
+        private ByteBuffer buf;
+
+        public ByteBufferInputStream(ByteBuffer buf)
+        {
+            this.buf = buf;
+        }
+
+        public int read()
+        {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len)
+        {
+            if (!buf.hasRemaining())
+                return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        public int available()
+        {
+            return buf.remaining();
+        }
+    }
+}
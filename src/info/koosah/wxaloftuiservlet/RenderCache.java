@@ -0,0 +1,95 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * An in-memory cache of rendered maps (before anything is drawn on them),
+ * keyed by bounds and zoom level, and bounded by the number of bytes
+ * their pixels occupy. Many requests (e.g. the first map of each area,
+ * whose bounds come from Map.withSize) are for the same map, which then
+ * need not be composed from tiles again; copying the cached one (which
+ * is one array copy per row) will do. Degraded maps are not cached.
+ */
+public class RenderCache
+{
+    public static final long MAX_BYTES = 32L * 1024L * 1024L;
+
+    private ImageCache<String> cache;
+
+    /**
+     * Constructor.
+     *
+     * @param maxBytes  Maximum number of bytes to cache
+     */
+    public RenderCache(long maxBytes)
+    {
+        cache = new ImageCache<String>(maxBytes);
+    }
+
+    /**
+     * Render a map into an image (as with Map.render), unless a copy of
+     * it is cached, in which case just copy that into the image.
+     *
+     * @param m         Map
+     * @param image     Image to render into
+     */
+    public void render(Map m, BufferedImage image) throws IOException
+    {
+        String key = getKey(m);
+        Image cached = cache.get(key);
+        if (cached != null) {
+            TileImages.blit(cached, image, 0, 0);
+            return;
+        }
+        m.render(image);
+        if (!m.isDegraded())
+            cache.put(key, copy(image));
+    }
+
+    /**
+     * See if a map is cached.
+     *
+     * @param m         Map
+     * @return          True if it is cached
+     */
+    public boolean contains(Map m)
+    {
+        return cache.contains(getKey(m));
+    }
+
+    private static String getKey(Map m)
+    {
+        return String.format("%d/%d/%d/%d/%d", m.getZoom(),
+            m.southPixel(), m.westPixel(), m.northPixel(), m.eastPixel());
+    }
+
+    /**
+     * Remove everything.
+     */
+    public void clear()
+    {
+        cache.clear();
+    }
+
+    /**
+     * Summarize the cache.
+     *
+     * @return          Printable string
+     */
+    public String toString()
+    {
+        return cache.toString();
+    }
+
+    /* copy an image into a new, unshared one */
+    private static BufferedImage copy(BufferedImage image)
+    {
+        BufferedImage ret = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        TileImages.blit(image, ret, 0, 0);
+        return ret;
+    }
+}
@@ -0,0 +1,73 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * Coalesces concurrent requests for the same thing. The first caller to
+ * ask for a given key does the work; callers that ask for the same key
+ * while that work is still in progress wait for and share its result.
+ * Nothing is remembered once the work is done; caching is up to the
+ * caller.
+ */
+public class SingleFlight<K, V>
+{
+    private ConcurrentHashMap<K, FutureTask<V>> flights;
+
+    public SingleFlight()
+    {
+        flights = new ConcurrentHashMap<K, FutureTask<V>>();
+    }
+
+    /**
+     * Do some work, or wait for someone else already doing the same work.
+     *
+     * @param key       Identifies the work being done
+     * @param work      Does the work
+     * @return          Result of the work
+     */
+    public V run(K key, Callable<V> work) throws IOException
+    {
+        FutureTask<V> mine = new FutureTask<V>(work);
+        FutureTask<V> flight = flights.putIfAbsent(key, mine);
+        if (flight == null) {
+            flight = mine;
+            try {
+                mine.run();
+            } finally {
+                flights.remove(key, mine);
+            }
+        }
+        try {
+            return flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Get number of pieces of work currently in progress.
+     *
+     * @return          Count
+     */
+    public int getInFlight()
+    {
+        return flights.size();
+    }
+}
@@ -1,60 +1,79 @@
 package info.koosah.wxaloftuiservlet;
 
-import java.io.File;
-import java.io.IOException;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.HashMap;
 
 /**
  * @author David Barts <n5jrn@me.com>
  * @since 2017-11-27
  *
- * Per-thread file locking. Not a substutute for per-process locking!
+ * Per-thread tile locking. Not a substutute for per-process locking!
  * Must be used in conjunction with the latter.
+ *
+ * Reading the directory cache needs no locks at all, and writers never
+ * get in each other's way (see CachingTileProvider), so the read lock
+ * on a tile is held while writing it (and reporting it to the janitor),
+ * and the write lock by TileCacheJanitor while deleting it. That way a
+ * tile rewritten while it is being evicted is never deleted out from
+ * under its new index entry.
+ *
+ * Locks are striped: there is a fixed table of read/write locks, and
+ * each tile (identified by column, row, and zoom level) maps to one of
+ * them. Unrelated tiles occasionally share a lock, which costs a little
+ * needless waiting but never correctness, and in exchange the table
+ * never grows and getting a lock involves no system calls and no global
+ * monitor.
  */
 public class ThreadLock
 {
-    private static HashMap<String, ReadWriteLock> locks =
-        new HashMap<String, ReadWriteLock>();
+    private static final int STRIPES = 256;  /* must be a power of 2 */
 
-    private static ReadWriteLock getLock(File f) throws IOException
+    private static final ReadWriteLock[] locks = new ReadWriteLock[STRIPES];
+    static {
+        for (int i = 0; i < STRIPES; i++)
+            locks[i] = new ReentrantReadWriteLock();
+    }
+
+    private static ReadWriteLock getLock(int x, int y, int z)
     {
-        String canon = f.getCanonicalPath();
-        ReadWriteLock ret = null;
-        synchronized (locks) {
-            ret = locks.get(canon);
-            if (ret == null) {
-                ret = new ReentrantReadWriteLock();
-                locks.put(canon, ret);
-            }
-        }
-        return ret;
+        /* scramble the key (MurmurHash3 finalizer), so that neighboring
+           tiles land on different stripes */
+        long h = TileKey.make(x, y, z);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return locks[(int) h & (STRIPES - 1)];
     }
 
     /**
-     * Establish a per-thread read lock on a file. Return the lock object
+     * Establish a per-thread read lock on a tile. Return the lock object
      * so that it may be later unlocked.
-     * @param           File to lock
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
      * @return          Lock object
      */
-    public static Lock readLock(File f) throws IOException
+    public static Lock readLock(int x, int y, int z)
     {
-        Lock ret = getLock(f).readLock();
+        Lock ret = getLock(x, y, z).readLock();
         ret.lock();
         return ret;
     }
 
     /**
-     * Establish a per-thread write lock on a file. Return the lock object
+     * Establish a per-thread write lock on a tile. Return the lock object
      * so that it may be later unlocked.
-     * @param           File to lock
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
      * @return          Lock object
      */
-    public static Lock writeLock(File f) throws IOException
+    public static Lock writeLock(int x, int y, int z)
     {
-        Lock ret = getLock(f).writeLock();
+        Lock ret = getLock(x, y, z).writeLock();
         ret.lock();
         return ret;
     }
@@ -0,0 +1,119 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Contention microbenchmark for ThreadLock. Runs increasing numbers of
+ * threads that lock random tiles (mostly for reading, sometimes for
+ * writing) for a while, and reports throughput for both ThreadLock and
+ * the old scheme it replaced (one lock per canonical file name, kept in
+ * a synchronized HashMap).
+ *
+ * @author David Barts <n5jrn@me.com>
+ *
+ */
+public class ThreadLockBenchmark {
+
+    public static final String MYNAME = "ThreadLockBenchmark";
+    private static final long DURATION = 2000L;  /* ms per trial */
+    private static final int ZOOM = 12;
+    private static final int[] THREADS = { 1, 2, 4, 8, 16 };
+
+    private interface Locker {
+        public Lock lock(int x, int y, boolean write) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        // Parse command-line options
+        if (args.length > 2) {
+            System.err.format("%s: syntax: %s [tiles [write-percent]]%n", MYNAME, MYNAME);
+            System.exit(2);
+        }
+        int tiles = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int writePercent = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        System.out.format("%d distinct tiles, %d%% writes, %d ms per trial%n", tiles, writePercent, DURATION);
+
+        Locker striped = (x, y, write) -> write ? ThreadLock.writeLock(x, y, ZOOM) : ThreadLock.readLock(x, y, ZOOM);
+        Locker legacy = new LegacyLocker(new File(System.getProperty("java.io.tmpdir"), "cache"));
+        System.out.format("%8s %16s %16s%n", "threads", "striped ops/s", "legacy ops/s");
+        for (int n : THREADS)
+            System.out.format("%8d %16.0f %16.0f%n", n,
+                run(striped, n, tiles, writePercent), run(legacy, n, tiles, writePercent));
+    }
+
+    private static double run(Locker locker, int threads, int tiles, int writePercent) throws InterruptedException
+    {
+        final AtomicLong ops = new AtomicLong(0L);
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long mine = 0L;
+                try {
+                    start.await();
+                    while (System.currentTimeMillis() < deadline[0]) {
+                        int tile = random.nextInt(tiles);
+                        boolean write = random.nextInt(100) < writePercent;
+                        Lock l = locker.lock(tile % 256, tile / 256, write);
+                        try {
+                            /* simulate a little work while holding the lock */
+                            for (int j = 0; j < 100; j++)
+                                random.nextInt();
+                        } finally {
+                            l.unlock();
+                        }
+                        mine++;
+                    }
+                } catch (InterruptedException|IOException e) {
+                    throw new RuntimeException(e);
+                }
+                ops.addAndGet(mine);
+            });
+            workers[i].start();
+        }
+        deadline[0] = System.currentTimeMillis() + DURATION;
+        start.countDown();
+        for (Thread t : workers)
+            t.join();
+        return ops.get() * 1000.0 / DURATION;
+    }
+
+    /* the pre-striping scheme, kept here for comparison */
+    private static class LegacyLocker implements Locker {
+        private HashMap<String, ReadWriteLock> locks = new HashMap<String, ReadWriteLock>();
+        private File cacheDir;
+
+        public LegacyLocker(File cacheDir)
+        {
+            this.cacheDir = cacheDir;
+        }
+
+        public Lock lock(int x, int y, boolean write) throws IOException
+        {
+            File f = new File(new File(new File(cacheDir, Integer.toString(ZOOM)), Integer.toString(y)), x + ".png");
+            String canon = f.getCanonicalPath();
+            ReadWriteLock rwl = null;
+            synchronized (locks) {
+                rwl = locks.get(canon);
+                if (rwl == null) {
+                    rwl = new ReentrantReadWriteLock();
+                    locks.put(canon, rwl);
+                }
+            }
+            Lock ret = write ? rwl.writeLock() : rwl.readLock();
+            ret.lock();
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+
+import static info.koosah.wxaloftuiservlet.WorldPixel.*;
+
+/**
+ * Benchmarks the tile pipeline against a FakeTileServer, so that numbers
+ * are reproducible and no real tile server is bothered. For each number
+ * of threads, runs an untimed warm-up trial and then a timed one, and
+ * reports throughput and latency. Benchmarks are:
+ *
+ *   hit     CachingTileProvider.getTile, tile always on disk
+ *   miss    CachingTileProvider.getTile, tile never on disk
+ *   render  Map.getImage, tiles in memory or on disk
+ *   blit    composing a map from tiles in memory, by drawing them as
+ *           decoded (paletted, and with bytes per color) and by copying
+ *           pixels from tiles converted by TileImages.toRgb
+ *   lock    ThreadLock contention (see ThreadLockBenchmark)
+ *
+ * @author David Barts <n5jrn@me.com>
+ *
+ */
+public class TileBenchmark {
+
+    public static final String MYNAME = "TileBenchmark";
+    private static final long WARMUP = 1000L;  /* ms per warm-up trial */
+    private static final long DURATION = 5000L;  /* ms per trial */
+    private static final int[] THREADS = { 1, 2, 4, 8, 16 };
+    private static final int ZOOM = 10;
+    private static final int REGION = 16;  /* tiles on a side of the area used */
+    private static final int GRID = 4;  /* tiles on a side of a composed map */
+    private static final int CONNECTIONS = 64;
+    private static final int RETRIES = 10;  /* when caching tiles to start */
+
+    private interface Op {
+        public void run(ThreadLocalRandom random) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        // Parse command-line options
+        if (args.length < 1 || args.length > 5 || !args[0].matches("hit|miss|render|blit|lock|all")) {
+            System.err.format("%s: syntax: %s hit|miss|render|blit|lock|all [latency [jitter [error-rate [bandwidth]]]]%n",
+                MYNAME, MYNAME);
+            System.exit(2);
+        }
+        String which = args[0];
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 20L;
+        long jitter = args.length > 2 ? Long.parseLong(args[2]) : 10L;
+        double errorRate = args.length > 3 ? Double.parseDouble(args[3]) : 0.0;
+        long bandwidth = args.length > 4 ? Long.parseLong(args[4]) : 0L;
+
+        // Enter headless mode
+        System.setProperty("java.awt.headless", "true");
+
+        // Lock contention and composition need no tile server
+        if (which.equals("lock") || which.equals("all")) {
+            System.out.println("Benchmark: lock");
+            ThreadLockBenchmark.main(new String[0]);
+        }
+        if (which.equals("blit") || which.equals("all")) {
+            Image[] decoded = new Image[GRID * GRID];
+            Image[] paletted = new Image[decoded.length];
+            Image[] converted = new Image[decoded.length];
+            for (int i = 0; i < decoded.length; i++) {
+                decoded[i] = ImageIO.read(new ByteArrayInputStream(FakeTileServer.makeTile(i % GRID, i / GRID, ZOOM)));
+                paletted[i] = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_BYTE_INDEXED);
+                Graphics g = ((BufferedImage) paletted[i]).getGraphics();
+                g.drawImage(decoded[i], 0, 0, null);
+                g.dispose();
+                converted[i] = TileImages.toRgb(decoded[i]);
+            }
+            benchmark("blit, drawing paletted tiles", compose(paletted, false));
+            benchmark("blit, drawing decoded tiles", compose(decoded, false));
+            benchmark("blit, copying converted tiles", compose(converted, true));
+        }
+        if (which.equals("lock") || which.equals("blit"))
+            return;
+
+        // Set up a server, and a cache in front of it
+        FakeTileServer server = new FakeTileServer(latency, jitter, errorRate, bandwidth);
+        server.start(0);
+        TileHttpClient.setDefault(new TileHttpClient(CONNECTIONS, TileHttpClient.CONNECT_TIMEOUT,
+            TileHttpClient.READ_TIMEOUT, TileHttpClient.USER_AGENT));
+        File cacheDir = Files.createTempDirectory(MYNAME).toFile();
+        TileFetcher fetcher = new TileFetcher(TileFetcher.THREADS, TileFetcher.DEADLINE);
+        System.out.format("Server latency %d+/-%d ms, error rate %.3f, bandwidth %s%n", latency, jitter, errorRate,
+            bandwidth > 0L ? bandwidth + " bytes/s" : "unlimited");
+        try {
+            CachingTileProvider cache = new CachingTileProvider(cacheDir, new UrlTileProvider(server.getTemplate()));
+            if (which.equals("miss") || which.equals("all")) {
+                final AtomicInteger next = new AtomicInteger(0);
+                benchmark("miss", random -> {
+                    int n = next.getAndIncrement();
+                    cache.getTile(n & 0xffff, n >>> 16, MAXZOOM);
+                });
+            }
+            if (which.equals("hit") || which.equals("render") || which.equals("all")) {
+                System.out.format("Caching %d tiles...%n", REGION * REGION);
+                Map warm = new Map(REGION * TILE_SIZE, 0, 0, REGION * TILE_SIZE, ZOOM, cache);
+                warm.setFetcher(fetcher);
+                for (int tries = 1; ; tries++) {
+                    try {
+                        warm.getImage().flush();
+                        break;
+                    } catch (IOException e) {
+                        /* tiles we did get are cached, so try again */
+                        if (tries >= RETRIES)
+                            throw e;
+                    }
+                }
+            }
+            if (which.equals("hit") || which.equals("all")) {
+                benchmark("hit", random -> cache.getTile(random.nextInt(REGION), random.nextInt(REGION), ZOOM));
+            }
+            if (which.equals("render") || which.equals("all")) {
+                final int SIZE = GetMap.PIXELS;
+                final TileProvider p = new MemoryTileProvider(new ImageCache<Long>(TileStack.MEMORY_CACHE), cache);
+                benchmark("render", random -> {
+                    int north = random.nextInt(REGION * TILE_SIZE - SIZE);
+                    int west = random.nextInt(REGION * TILE_SIZE - SIZE);
+                    Map m = new Map(north + SIZE, west, north, west + SIZE, ZOOM, p);
+                    m.setFetcher(fetcher);
+                    m.getImage().flush();
+                });
+            }
+            System.out.format("Server: %s%n", server);
+        } finally {
+            fetcher.shutdown();
+            server.stop();
+            delete(cacheDir);
+        }
+    }
+
+    /* compose a map from a grid of tiles, at a random offset */
+    private static Op compose(Image[] tiles, boolean blit)
+    {
+        final int SIZE = GetMap.PIXELS;
+        return random -> {
+            int cwest = random.nextInt(TILE_SIZE);
+            int cnorth = random.nextInt(TILE_SIZE);
+            BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+            Graphics g = blit ? null : image.getGraphics();
+            for (int i = 0; i < tiles.length; i++) {
+                int x = (i % GRID) * TILE_SIZE - cwest;
+                int y = (i / GRID) * TILE_SIZE - cnorth;
+                if (blit)
+                    TileImages.blit(tiles[i], image, x, y);
+                else
+                    g.drawImage(tiles[i], x, y, null);
+            }
+            if (g != null)
+                g.dispose();
+        };
+    }
+
+    private static void benchmark(String name, Op op) throws InterruptedException
+    {
+        System.out.format("Benchmark: %s%n", name);
+        System.out.format("%8s %12s %10s %10s %10s %8s%n", "threads", "ops/s", "p50 ms", "p99 ms", "max ms", "errors");
+        for (int n : THREADS) {
+            run(op, n, WARMUP);
+            AtomicLong errors = new AtomicLong(0L);
+            LatencyHistogram latencies = run(op, n, DURATION, errors);
+            System.out.format("%8d %12.1f %10.3f %10.3f %10.3f %8d%n", n,
+                latencies.getCount() * 1000.0 / DURATION, latencies.getMedian(), latencies.get99thPercentile(),
+                latencies.getMax(), errors.get());
+        }
+    }
+
+    private static LatencyHistogram run(Op op, int threads, long duration) throws InterruptedException
+    {
+        return run(op, threads, duration, new AtomicLong(0L));
+    }
+
+    private static LatencyHistogram run(Op op, int threads, long duration, AtomicLong errors) throws InterruptedException
+    {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.currentTimeMillis() < deadline[0]) {
+                    long begin = System.nanoTime();
+                    try {
+                        op.run(random);
+                        latencies.record(System.nanoTime() - begin);
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        deadline[0] = System.currentTimeMillis() + duration;
+        start.countDown();
+        for (Thread t : workers)
+            t.join();
+        return latencies;
+    }
+
+    private static void delete(File f)
+    {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File c : children)
+                delete(c);
+        f.delete();
+    }
+}
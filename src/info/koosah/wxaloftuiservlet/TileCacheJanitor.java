@@ -0,0 +1,332 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static info.koosah.wxaloftuiservlet.WorldPixel.MAXZOOM;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * Keeps a directory cache of tiles (as made by CachingTileProvider)
+ * within a budget of bytes (counting each tile's sidecar file too) and/or
+ * files, by deleting the least recently used tiles from a background
+ * thread. Access times are tracked in an
+ * in-memory index (built by scanning the cache at startup and kept up to
+ * date by the caching provider), not by the file system. Also keeps
+ * track of how much of the cache each zoom level uses, and removes
+ * temporary files abandoned by crashed writers.
+ */
+public class TileCacheJanitor implements Runnable
+{
+    private static final Logger LOGGER = Logger.getLogger(TileCacheJanitor.class.getCanonicalName());
+    public static final long INTERVAL = 60000L;  /* ms between checks */
+    private static final double LOW_WATER = 0.9;  /* evict down to this fraction of budget */
+    private static final long ABANDONED = 60L * 60L * 1000L;  /* temp files older than this */
+
+    private File cacheDir;
+    private long maxBytes, maxFiles, interval;
+    private ConcurrentHashMap<Long, Entry> index;
+    private AtomicLongArray bytes, files;
+    private AtomicLong evictions;
+    private Thread thread;
+
+    /**
+     * Constructor.
+     *
+     * @param cacheDir  Cache directory
+     * @param maxBytes  Maximum bytes of tiles (and sidecar files) to keep,
+     *                  or 0 for no limit
+     * @param maxFiles  Maximum number of tiles to keep, or 0 for no limit
+     * @param interval  Milliseconds between checks
+     */
+    public TileCacheJanitor(File cacheDir, long maxBytes, long maxFiles, long interval)
+    {
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        this.interval = interval;
+        this.index = new ConcurrentHashMap<Long, Entry>();
+        this.bytes = new AtomicLongArray(MAXZOOM + 1);
+        this.files = new AtomicLongArray(MAXZOOM + 1);
+        this.evictions = new AtomicLong(0L);
+        this.thread = null;
+    }
+
+    /**
+     * Start the background thread, which first scans the cache.
+     */
+    public synchronized void start()
+    {
+        if (thread != null)
+            return;
+        thread = new Thread(this, "TileCacheJanitor");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stop the background thread.
+     */
+    public synchronized void stop()
+    {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Background thread body.
+     */
+    public void run()
+    {
+        try {
+            scan();
+            while (!Thread.interrupted()) {
+                evict();
+                Thread.sleep(interval);
+            }
+        } catch (InterruptedException e) {
+            /* asked to stop, so we stop */
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Tile cache janitor died", e);
+        }
+    }
+
+    /**
+     * Note that a cached tile was used.
+     *
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     */
+    public void touched(int x, int y, int z)
+    {
+        Entry e = index.get(TileKey.make(x, y, z));
+        if (e != null)
+            e.lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Note that a tile was written to the cache.
+     *
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @param size      Size of the tile (and its sidecar file) in bytes
+     */
+    public void stored(int x, int y, int z, long size)
+    {
+        long now = System.currentTimeMillis();
+        add(TileKey.make(x, y, z), size, now, now, true);
+    }
+
+    private void add(long key, long size, long lastAccess, long modified, boolean replace)
+    {
+        Entry e = new Entry(size, lastAccess, modified);
+        Entry old = replace ? index.put(key, e) : index.putIfAbsent(key, e);
+        if (old != null && !replace)
+            return;
+        int z = TileKey.getZ(key);
+        bytes.addAndGet(z, size);
+        if (old == null)
+            files.incrementAndGet(z);
+        else
+            bytes.addAndGet(z, -old.size);
+    }
+
+    /* build the index from what is on disk */
+    private void scan()
+    {
+        long now = System.currentTimeMillis();
+        String suffix = "." + TileImages.TYPE;
+        for (File cz : listNumeric(cacheDir)) {
+            int z = Integer.parseInt(cz.getName());
+            if (z > MAXZOOM)
+                continue;
+            for (File czy : listNumeric(cz)) {
+                int y = Integer.parseInt(czy.getName());
+                File[] children = czy.listFiles();
+                if (children == null)
+                    continue;
+                for (File czyx : children) {
+                    String name = czyx.getName();
+                    if (name.endsWith(CachingTileProvider.TEMP)) {
+                        if (now - czyx.lastModified() > ABANDONED)
+                            czyx.delete();
+                        continue;
+                    }
+                    if (!name.endsWith(suffix))
+                        continue;
+                    try {
+                        int x = Integer.parseInt(name.substring(0, name.length() - suffix.length()));
+                        long modified = czyx.lastModified();
+                        add(TileKey.make(x, y, z), czyx.length() + getMetaFile(czy, x).length(),
+                            modified, modified, false);
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                }
+            }
+        }
+        LOGGER.log(Level.INFO, "Tile cache scanned: " + this);
+    }
+
+    /* delete least recently used tiles until we are comfortably in budget */
+    private void evict()
+    {
+        if (!over(1.0))
+            return;
+        ArrayList<java.util.Map.Entry<Long, Entry>> all =
+            new ArrayList<java.util.Map.Entry<Long, Entry>>(index.entrySet());
+        Collections.sort(all, (a, b) -> Long.compare(a.getValue().lastAccess, b.getValue().lastAccess));
+        int evicted = 0;
+        for (java.util.Map.Entry<Long, Entry> me : all) {
+            if (!over(LOW_WATER))
+                break;
+            long key = me.getKey();
+            Entry e = me.getValue();
+            int x = TileKey.getX(key), y = TileKey.getY(key), z = TileKey.getZ(key);
+            File czy = new File(new File(cacheDir, Integer.toString(z)), Integer.toString(y));
+            File czyx = new File(czy, String.format("%d.%s", x, TileImages.TYPE));
+            Lock lock = ThreadLock.writeLock(x, y, z);
+            try {
+                if (index.get(key) != e)
+                    continue;  /* rewritten since we looked */
+                long modified = czyx.lastModified();
+                if (modified > e.modified) {
+                    /* rewritten (or revalidated) behind our back, e.g. by
+                       another process sharing the cache, so it is not
+                       least recently used after all */
+                    add(key, czyx.length() + getMetaFile(czy, x).length(), modified, modified, true);
+                    continue;
+                }
+                index.remove(key, e);
+                czyx.delete();
+                getMetaFile(czy, x).delete();
+            } finally {
+                lock.unlock();
+            }
+            bytes.addAndGet(z, -e.size);
+            files.decrementAndGet(z);
+            evicted++;
+        }
+        evictions.addAndGet(evicted);
+        LOGGER.log(Level.INFO, String.format("Evicted %d tiles from cache: %s", evicted, this));
+    }
+
+    private static File getMetaFile(File czy, int x)
+    {
+        return new File(czy, String.format("%d.%s", x, CachingTileProvider.META));
+    }
+
+    private boolean over(double fraction)
+    {
+        return (maxBytes > 0L && getBytes() > maxBytes * fraction)
+            || (maxFiles > 0L && getFiles() > maxFiles * fraction);
+    }
+
+    private static File[] listNumeric(File dir)
+    {
+        File[] ret = dir.listFiles(f -> f.isDirectory() && f.getName().matches("[0-9]+"));
+        return ret == null ? new File[0] : ret;
+    }
+
+    /**
+     * Get bytes of tiles cached at a zoom level.
+     *
+     * @param z         Zoom level
+     * @return          Count
+     */
+    public long getBytes(int z)
+    {
+        return bytes.get(z);
+    }
+
+    /**
+     * Get number of tiles cached at a zoom level.
+     *
+     * @param z         Zoom level
+     * @return          Count
+     */
+    public long getFiles(int z)
+    {
+        return files.get(z);
+    }
+
+    /**
+     * Get total bytes of tiles cached.
+     *
+     * @return          Count
+     */
+    public long getBytes()
+    {
+        long ret = 0L;
+        for (int z = 0; z <= MAXZOOM; z++)
+            ret += bytes.get(z);
+        return ret;
+    }
+
+    /**
+     * Get total number of tiles cached.
+     *
+     * @return          Count
+     */
+    public long getFiles()
+    {
+        long ret = 0L;
+        for (int z = 0; z <= MAXZOOM; z++)
+            ret += files.get(z);
+        return ret;
+    }
+
+    /**
+     * Get number of tiles evicted.
+     *
+     * @return          Count
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * Summarize cache usage, by zoom level.
+     *
+     * @return          Printable string
+     */
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d tiles, %d bytes, %d evicted;", getFiles(), getBytes(), getEvictions()));
+        for (int z = 0; z <= MAXZOOM; z++)
+            if (files.get(z) > 0L)
+                sb.append(String.format(" z%d=%d/%d", z, files.get(z), bytes.get(z)));
+        return sb.toString();
+    }
+
+    /* what we know about a cached tile */
+    private static class Entry
+    {
+        final long size;  /* including any sidecar file */
+        volatile long lastAccess;
+        final long modified;  /* file's modification time, or later */
+
+        public Entry(long size, long lastAccess, long modified)
+        {
+            this.size = size;
+            this.lastAccess = lastAccess;
+            this.modified = modified;
+        }
+    }
+}
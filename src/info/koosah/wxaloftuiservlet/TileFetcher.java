@@ -0,0 +1,149 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.awt.Image;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * Fetches the images for a batch of tiles concurrently, using a bounded
+ * pool of threads, and gives up on the whole batch if it is not done by
+ * a deadline. Optionally, tiles that failed or were not done in time
+ * may be replaced by stand-ins instead.
+ */
+public class TileFetcher
+{
+    public static final int THREADS = 8;
+    public static final long DEADLINE = 20000L;  /* milliseconds */
+
+    private static TileFetcher dflt = null;
+
+    private ExecutorService executor;
+    private long deadline;
+
+    /**
+     * Constructor.
+     *
+     * @param threads   Maximum number of tiles to fetch at once
+     * @param deadline  Milliseconds allowed for fetching a batch
+     */
+    public TileFetcher(int threads, long deadline)
+    {
+        final AtomicInteger serial = new AtomicInteger(0);
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TileFetcher-" + serial.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.deadline = deadline;
+    }
+
+    /**
+     * Get a shared fetcher with default settings, for those who have
+     * no need to make their own.
+     *
+     * @return          TileFetcher object
+     */
+    public static synchronized TileFetcher getDefault()
+    {
+        if (dflt == null)
+            dflt = new TileFetcher(THREADS, DEADLINE);
+        return dflt;
+    }
+
+    /**
+     * Fetch the images of the specified tiles.
+     *
+     * @param tiles     Tiles to fetch
+     * @return          Their images, in the same order
+     */
+    public Image[] fetch(List<Tile> tiles) throws IOException
+    {
+        return fetch(tiles, null, false);
+    }
+
+    /**
+     * Fetch the images of the specified tiles, replacing those that
+     * cannot be fetched in time with (degraded) stand-ins.
+     *
+     * @param tiles     Tiles to fetch
+     * @param fallback  Makes stand-ins from cached tiles, or null for
+     *                  blank stand-ins
+     * @return          Their images, in the same order
+     */
+    public Image[] fetch(List<Tile> tiles, OverzoomTileProvider fallback) throws IOException
+    {
+        return fetch(tiles, fallback, true);
+    }
+
+    private Image[] fetch(List<Tile> tiles, OverzoomTileProvider fallback, boolean degrade) throws IOException
+    {
+        ArrayList<Callable<Image>> work = new ArrayList<Callable<Image>>(tiles.size());
+        for (Tile t : tiles)
+            work.add(t::getImage);
+        List<Future<Image>> results = null;
+        try {
+            results = executor.invokeAll(work, deadline, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted fetching tiles");
+        }
+        Image[] ret = new Image[tiles.size()];
+        for (int i = 0; i < ret.length; i++) {
+            Tile t = tiles.get(i);
+            try {
+                ret[i] = results.get(i).get();
+            } catch (CancellationException e) {
+                if (degrade) {
+                    ret[i] = standIn(t, fallback);
+                    continue;
+                }
+                throw new IOException(String.format("Timed out fetching tile %d/%d/%d",
+                    t.getZoom(), t.getX(), t.getY()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted fetching tiles");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (degrade && cause instanceof IOException) {
+                    ret[i] = standIn(t, fallback);
+                    continue;
+                }
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw new IOException(cause);
+            }
+        }
+        return ret;
+    }
+
+    private Image standIn(Tile t, OverzoomTileProvider fallback)
+    {
+        Image ret = fallback == null ? null : fallback.synthesize(t.getX(), t.getY(), t.getZoom());
+        return ret == null ? TileImages.blank() : ret;
+    }
+
+    /**
+     * Stop accepting work and let the worker threads exit.
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,141 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Semaphore;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * HTTP client for fetching tiles from tile servers, shared by all tile
+ * providers. Sets explicit timeouts and its own User-Agent on every
+ * request (rather than relying on the global http.agent property), caps
+ * the number of connections in use at once, and always consumes response
+ * bodies fully, so that the JDK's keep-alive cache can reuse connections
+ * (and their TLS sessions) for later requests. The number of idle
+ * connections kept alive per server is governed by the JDK's
+ * http.maxConnections system property.
+ */
+public class TileHttpClient
+{
+    public static final int CONNECTIONS = 8;
+    public static final int CONNECT_TIMEOUT = 5000;  /* milliseconds */
+    public static final int READ_TIMEOUT = 10000;  /* milliseconds */
+    public static final String USER_AGENT = "WxAloftUi (http://github.com/DavidBarts/WxAloftUi)";
+
+    private static TileHttpClient dflt = null;
+
+    private Semaphore connections;
+    private int connectTimeout, readTimeout;
+    private String userAgent;
+
+    /**
+     * Constructor.
+     *
+     * @param connections       Maximum connections in use at once
+     * @param connectTimeout    Connect timeout in milliseconds
+     * @param readTimeout       Read timeout in milliseconds
+     * @param userAgent         User-Agent header to send
+     */
+    public TileHttpClient(int connections, int connectTimeout, int readTimeout, String userAgent)
+    {
+        this.connections = new Semaphore(connections, true);
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.userAgent = userAgent;
+    }
+
+    /**
+     * Get the shared client.
+     *
+     * @return          TileHttpClient object
+     */
+    public static synchronized TileHttpClient getDefault()
+    {
+        if (dflt == null)
+            dflt = new TileHttpClient(CONNECTIONS, CONNECT_TIMEOUT, READ_TIMEOUT, USER_AGENT);
+        return dflt;
+    }
+
+    /**
+     * Replace the shared client.
+     *
+     * @param client    TileHttpClient object
+     */
+    public static synchronized void setDefault(TileHttpClient client)
+    {
+        dflt = client;
+    }
+
+    /**
+     * Conditionally get something.
+     *
+     * @param urlString     URL to get
+     * @param etag          Entity tag from previous fetch, or null
+     * @param lastModified  Last-modified time from previous fetch, or 0
+     * @return              TileResponse object
+     */
+    public TileResponse get(String urlString, String etag, long lastModified) throws IOException
+    {
+        try {
+            connections.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a connection");
+        }
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(urlString).openConnection();
+            conn.setConnectTimeout(connectTimeout);
+            conn.setReadTimeout(readTimeout);
+            conn.setUseCaches(false);
+            conn.setRequestProperty("User-Agent", userAgent);
+            conn.setRequestProperty("Accept", "image/png, image/*");
+            if (etag != null)
+                conn.setRequestProperty("If-None-Match", etag);
+            if (lastModified > 0L)
+                conn.setIfModifiedSince(lastModified);
+            int status = conn.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                drain(conn.getInputStream());
+                return new TileResponse(null, etag, lastModified);
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                drain(conn.getErrorStream());
+                throw new IOException("HTTP status " + status);
+            }
+            try (InputStream in = conn.getInputStream()) {
+                return new TileResponse(TileImages.readAll(in),
+                    conn.getHeaderField("ETag"), conn.getLastModified());
+            }
+        } finally {
+            connections.release();
+        }
+    }
+
+    /* read and discard a response body, so the connection may be reused */
+    private void drain(InputStream in) throws IOException
+    {
+        if (in == null)
+            return;
+        try {
+            byte[] buf = new byte[1024];
+            while (in.read(buf) > 0)
+                ;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Get number of connections that could be opened right now.
+     *
+     * @return          Count
+     */
+    public int getAvailable()
+    {
+        return connections.availablePermits();
+    }
+}
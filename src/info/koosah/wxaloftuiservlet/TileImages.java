@@ -0,0 +1,299 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.RenderedImage;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.zip.CRC32;
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * Static utilities for converting tiles between their encoded (as served
+ * by tile servers and stored in caches) and decoded forms.
+ */
+public class TileImages
+{
+    public static final String TYPE = "png";
+    public static final String DEGRADED = "degraded";  /* image property */
+    private static final Color BLANK = new Color(0xe0, 0xe0, 0xe0);
+    private static final LatencyHistogram DECODE_TIMES = new LatencyHistogram();
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+    /**
+     * Decode an encoded tile. The image is converted to the layout
+     * blit() can copy directly.
+     *
+     * @param encoded   Encoded tile
+     * @return          Image of the tile
+     */
+    public static Image decode(byte[] encoded) throws IOException
+    {
+        long start = System.nanoTime();
+        Image ret = ImageIO.read(new ByteArrayInputStream(encoded));
+        if (ret == null)
+            throw new IOException("Unrecognized tile image format");
+        ret = toRgb(ret);
+        DECODE_TIMES.record(System.nanoTime() - start);
+        return ret;
+    }
+
+    /**
+     * Make sure an encoded tile is a complete image, so that error pages
+     * and truncated responses are not cached. This is done without
+     * decoding the tile (that is left for when, and if, it is used): a
+     * PNG must consist of whole chunks with good checksums, starting with
+     * a header and ending with a trailer; anything else must at least be
+     * in a format we can decode.
+     *
+     * @param encoded   Encoded tile
+     */
+    public static void verify(byte[] encoded) throws IOException
+    {
+        if (startsWith(encoded, 0, PNG_SIGNATURE)) {
+            verifyPng(encoded);
+            return;
+        }
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(encoded))) {
+            if (in == null || !ImageIO.getImageReaders(in).hasNext())
+                throw new IOException("Unrecognized tile image format");
+        }
+    }
+
+    /* walk the chunks of a PNG */
+    private static void verifyPng(byte[] encoded) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.wrap(encoded);  /* big-endian, as PNG is */
+        buf.position(PNG_SIGNATURE.length);
+        CRC32 crc = new CRC32();
+        boolean first = true;
+        while (buf.remaining() >= 12) {  /* length, type, CRC */
+            int length = buf.getInt();
+            int start = buf.position();
+            if (length < 0 || length > buf.remaining() - 8)
+                break;
+            String type = new String(encoded, start, 4, StandardCharsets.US_ASCII);
+            crc.reset();
+            crc.update(encoded, start, 4 + length);
+            buf.position(start + 4 + length);
+            if ((int) crc.getValue() != buf.getInt())
+                throw new IOException("Corrupt PNG tile (bad " + type + " checksum)");
+            if (first && !type.equals("IHDR"))
+                throw new IOException("Corrupt PNG tile (no header)");
+            first = false;
+            if (type.equals("IEND"))
+                return;  /* anything after it is ignored, by us and by decoders */
+        }
+        throw new IOException("Truncated PNG tile");
+    }
+
+    private static boolean startsWith(byte[] data, int offset, byte[] prefix)
+    {
+        if (offset < 0 || data.length - offset < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++)
+            if (data[offset + i] != prefix[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Convert an image to one with simple packed RGB pixels (which is
+     * what we render maps into), unless it already is one. Tiles are
+     * often paletted, or have separate bytes for each color, and
+     * converting once (when decoded) is cheaper than converting every
+     * time one is drawn.
+     *
+     * @param image     Image to convert
+     * @return          Converted image
+     */
+    public static BufferedImage toRgb(Image image)
+    {
+        if (isRgb(image))
+            return (BufferedImage) image;
+        BufferedImage ret = new BufferedImage(image.getWidth(null), image.getHeight(null), BufferedImage.TYPE_INT_RGB);
+        Graphics g = ret.getGraphics();
+        try {
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return ret;
+    }
+
+    private static boolean isRgb(Image image)
+    {
+        return image instanceof BufferedImage
+            && ((BufferedImage) image).getType() == BufferedImage.TYPE_INT_RGB
+            && ((BufferedImage) image).getSampleModel() instanceof SinglePixelPackedSampleModel;
+    }
+
+    /**
+     * Copy an image into another at an offset, clipping it to fit. If
+     * both are simple packed RGB images (see toRgb), this is done by
+     * copying rows of pixels directly, else by drawing.
+     *
+     * @param src       Image to copy
+     * @param dst       Image to copy it into
+     * @param dx        X offset in dst of src's upper left corner
+     * @param dy        Y offset in dst of src's upper left corner
+     */
+    public static void blit(Image src, BufferedImage dst, int dx, int dy)
+    {
+        if (!isRgb(src) || !isRgb(dst)) {
+            Graphics g = dst.getGraphics();
+            try {
+                g.drawImage(src, dx, dy, null);
+            } finally {
+                g.dispose();
+            }
+            return;
+        }
+        WritableRaster sr = ((BufferedImage) src).getRaster();
+        WritableRaster dr = dst.getRaster();
+        int x0 = Math.max(0, dx);
+        int y0 = Math.max(0, dy);
+        int x1 = Math.min(dr.getWidth(), dx + sr.getWidth());
+        int y1 = Math.min(dr.getHeight(), dy + sr.getHeight());
+        if (x0 >= x1 || y0 >= y1)
+            return;
+        SinglePixelPackedSampleModel ssm = (SinglePixelPackedSampleModel) sr.getSampleModel();
+        SinglePixelPackedSampleModel dsm = (SinglePixelPackedSampleModel) dr.getSampleModel();
+        DataBufferInt sdb = (DataBufferInt) sr.getDataBuffer();
+        DataBufferInt ddb = (DataBufferInt) dr.getDataBuffer();
+        int[] from = sdb.getData();
+        int[] to = ddb.getData();
+        int sstride = ssm.getScanlineStride();
+        int dstride = dsm.getScanlineStride();
+        int s = sdb.getOffset() + ssm.getOffset(x0 - dx - sr.getSampleModelTranslateX(), y0 - dy - sr.getSampleModelTranslateY());
+        int d = ddb.getOffset() + dsm.getOffset(x0 - dr.getSampleModelTranslateX(), y0 - dr.getSampleModelTranslateY());
+        int width = x1 - x0;
+        for (int y = y0; y < y1; y++) {
+            System.arraycopy(from, s, to, d, width);
+            s += sstride;
+            d += dstride;
+        }
+    }
+
+    /**
+     * Get the times taken by decode().
+     *
+     * @return          LatencyHistogram object
+     */
+    public static LatencyHistogram getDecodeTimes()
+    {
+        return DECODE_TIMES;
+    }
+
+    /**
+     * Encode a tile image, as a PNG.
+     *
+     * @param image     Image of the tile
+     * @return          Encoded tile
+     */
+    public static byte[] encode(Image image) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write((RenderedImage) image, TYPE, out))
+            throw new IOException("No writer for " + TYPE);
+        return out.toByteArray();
+    }
+
+    /**
+     * Read everything remaining from an input stream. Does not close it.
+     *
+     * @param in        Stream to read
+     * @return          All the bytes that were read
+     */
+    public static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+
+    /**
+     * Mark an image as degraded (i.e. a stand-in for the real thing,
+     * which should not be cached). The returned image shares its pixels
+     * with the original.
+     *
+     * @param image     Image to mark
+     * @return          Marked image
+     */
+    public static BufferedImage degrade(BufferedImage image)
+    {
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put(DEGRADED, Boolean.TRUE);
+        return new BufferedImage(image.getColorModel(), image.getRaster(),
+            image.isAlphaPremultiplied(), props);
+    }
+
+    /**
+     * See if an image has been marked as degraded.
+     *
+     * @param image     Image to check
+     * @return          True if it is degraded
+     */
+    public static boolean isDegraded(Image image)
+    {
+        return Boolean.TRUE.equals(image.getProperty(DEGRADED, null));
+    }
+
+    /**
+     * Make a blank (and degraded) tile, for when nothing better exists.
+     *
+     * @return          Image of the tile
+     */
+    public static BufferedImage blank()
+    {
+        BufferedImage ret = new BufferedImage(WorldPixel.TILE_SIZE, WorldPixel.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics g = ret.getGraphics();
+        try {
+            g.setColor(BLANK);
+            g.fillRect(0, 0, WorldPixel.TILE_SIZE, WorldPixel.TILE_SIZE);
+        } finally {
+            g.dispose();
+        }
+        return degrade(ret);
+    }
+
+    /**
+     * Make a tile by shrinking its four children into it.
+     *
+     * @param children  Child tiles: northwest, northeast, southwest,
+     *                  southeast
+     * @return          Image of the tile
+     */
+    public static BufferedImage shrink(Image[] children)
+    {
+        int half = WorldPixel.TILE_SIZE / 2;
+        BufferedImage ret = new BufferedImage(WorldPixel.TILE_SIZE, WorldPixel.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = ret.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            for (int i = 0; i < 4; i++)
+                g.drawImage(children[i], (i & 1) * half, (i >> 1) * half, half, half, null);
+        } finally {
+            g.dispose();
+        }
+        return ret;
+    }
+}
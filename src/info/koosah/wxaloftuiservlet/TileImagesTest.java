@@ -0,0 +1,98 @@
+package info.koosah.wxaloftuiservlet;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+
+/**
+ * Tests the blit() routine in the TileImages module, by comparing what it
+ * does with what drawing the same image would do.
+ *
+ * @author David Barts <n5jrn@me.com>
+ */
+public class TileImagesTest
+{
+    private static final int SIZE = 16;
+
+    @Test
+    public void inside()
+    {
+        check(pattern(SIZE, SIZE, 1), pattern(SIZE * 2, SIZE * 2, 2), 5, 7);
+    }
+
+    @Test
+    public void clipped()
+    {
+        BufferedImage src = pattern(SIZE, SIZE, 1);
+        check(src, pattern(SIZE, SIZE, 2), -5, -7);
+        check(src, pattern(SIZE, SIZE, 2), 5, 7);
+        check(src, pattern(SIZE, SIZE, 2), -5, 7);
+        check(pattern(SIZE * 2, SIZE * 2, 1), pattern(SIZE, SIZE, 2), -3, -3);
+    }
+
+    @Test
+    public void outside()
+    {
+        BufferedImage src = pattern(SIZE, SIZE, 1);
+        check(src, pattern(SIZE, SIZE, 2), SIZE, 0);
+        check(src, pattern(SIZE, SIZE, 2), 0, -SIZE);
+        check(src, pattern(SIZE, SIZE, 2), -SIZE * 2, SIZE * 2);
+    }
+
+    @Test
+    public void subImages()
+    {
+        BufferedImage src = pattern(SIZE * 2, SIZE * 2, 1).getSubimage(3, 5, SIZE, SIZE);
+        BufferedImage dst = pattern(SIZE * 3, SIZE * 3, 2).getSubimage(SIZE, 2, SIZE * 2, SIZE);
+        check(src, dst, 4, 6);
+        check(src, dst, -4, -6);
+        check(src, pattern(SIZE, SIZE, 2), 1, 2);
+        check(pattern(SIZE, SIZE, 1), dst, SIZE + 3, -1);
+    }
+
+    @Test
+    public void notRgb()
+    {
+        BufferedImage src = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+        src.setRGB(0, 0, 0xff123456);
+        src.setRGB(SIZE - 1, SIZE - 1, 0xff654321);
+        check(src, pattern(SIZE, SIZE, 2), 3, -3);
+    }
+
+    /* blit, and compare the result with drawing */
+    private void check(BufferedImage src, BufferedImage dst, int dx, int dy)
+    {
+        BufferedImage expected = copy(dst);
+        Graphics g = expected.getGraphics();
+        try {
+            g.drawImage(src, dx, dy, null);
+        } finally {
+            g.dispose();
+        }
+        TileImages.blit(src, dst, dx, dy);
+        for (int y = 0; y < dst.getHeight(); y++)
+            for (int x = 0; x < dst.getWidth(); x++)
+                assertEquals(String.format("pixel (%d, %d)", x, y), expected.getRGB(x, y), dst.getRGB(x, y));
+    }
+
+    /* an RGB image whose every pixel differs */
+    private BufferedImage pattern(int width, int height, int seed)
+    {
+        BufferedImage ret = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                ret.setRGB(x, y, (seed << 16) | (y << 8) | x);
+        return ret;
+    }
+
+    private BufferedImage copy(BufferedImage image)
+    {
+        BufferedImage ret = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++)
+            for (int x = 0; x < image.getWidth(); x++)
+                ret.setRGB(x, y, image.getRGB(x, y));
+        return ret;
+    }
+}
@@ -0,0 +1,78 @@
+package info.koosah.wxaloftuiservlet;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * Static utilities for packing a tile's column, row, and zoom level into
+ * a single long, suitable for use as a hash key. A tile key is laid out
+ * as follows:
+ *       xxxxxx zzzzz yyyyyyyyyyyyyyyyyyyy xxxxxxxxxxxxxxxxxxxx
+ *  MSB 63   45 44 40 39                20 19                 0 LSB
+ * x (high bits) = currently unused (always 0)
+ * z = zoom level
+ * y = row
+ * x (low bits) = column
+ */
+public class TileKey
+{
+    // Twenty bits is plenty for the rows and columns at MAXZOOM.
+    private static final int BITS = 20;
+    private static final long MASK = (1L << BITS) - 1L;
+
+    /**
+     * Make a tile key.
+     *
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          Tile key
+     */
+    public static long make(int x, int y, int z)
+    {
+        return ((long) z << (BITS * 2)) | ((long) y << BITS) | (long) x;
+    }
+
+    /**
+     * Get column of a tile key.
+     *
+     * @param key       Tile key
+     * @return          Column
+     */
+    public static int getX(long key)
+    {
+        return (int) (key & MASK);
+    }
+
+    /**
+     * Get row of a tile key.
+     *
+     * @param key       Tile key
+     * @return          Row
+     */
+    public static int getY(long key)
+    {
+        return (int) ((key >> BITS) & MASK);
+    }
+
+    /**
+     * Get zoom level of a tile key.
+     *
+     * @param key       Tile key
+     * @return          Zoom level
+     */
+    public static int getZ(long key)
+    {
+        return (int) (key >> (BITS * 2));
+    }
+
+    /**
+     * Return a tile key in the customary z/x/y form.
+     *
+     * @param key       Tile key
+     * @return          Printable string
+     */
+    public static String toString(long key)
+    {
+        return String.format("%d/%d/%d", getZ(key), getX(key), getY(key));
+    }
+}
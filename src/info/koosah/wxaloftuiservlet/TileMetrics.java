@@ -0,0 +1,153 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * Statistics for one layer of tile providers, as gathered by the
+ * MeteredTileProviders in front of it. A call is a hit if it was
+ * satisfied without calling any metered layer further down (on the same
+ * thread), else a miss; so for a cache layer, hits and misses are cache
+ * hits and misses. Errors due to our own rate limit and circuit breaker
+ * are counted separately as well as being counted as errors.
+ */
+public class TileMetrics implements TileMetricsMBean
+{
+    private String name;
+    private AtomicLong calls, hits, errors, limited, refused, bytes;
+    private LatencyHistogram latency;
+
+    /**
+     * Constructor.
+     *
+     * @param name      Name of the layer
+     */
+    public TileMetrics(String name)
+    {
+        this.name = name;
+        calls = new AtomicLong(0L);
+        hits = new AtomicLong(0L);
+        errors = new AtomicLong(0L);
+        limited = new AtomicLong(0L);
+        refused = new AtomicLong(0L);
+        bytes = new AtomicLong(0L);
+        latency = new LatencyHistogram();
+    }
+
+    /**
+     * Record a successful call.
+     *
+     * @param hit       True if it was a hit
+     * @param size      Bytes returned, or 0 if not known
+     * @param nanos     How long it took, in nanoseconds
+     */
+    public void success(boolean hit, long size, long nanos)
+    {
+        calls.incrementAndGet();
+        if (hit)
+            hits.incrementAndGet();
+        if (size > 0L)
+            bytes.addAndGet(size);
+        latency.record(nanos);
+    }
+
+    /**
+     * Record a failed call.
+     *
+     * @param e         What it failed with
+     * @param nanos     How long it took, in nanoseconds
+     */
+    public void failure(Exception e, long nanos)
+    {
+        calls.incrementAndGet();
+        errors.incrementAndGet();
+        if (e instanceof LimitingTileProvider.TileLimitException)
+            limited.incrementAndGet();
+        else if (e instanceof BreakerTileProvider.TileUnavailableException)
+            refused.incrementAndGet();
+        latency.record(nanos);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public long getCalls()
+    {
+        return calls.get();
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return calls.get() - hits.get() - errors.get();
+    }
+
+    public double getHitRatio()
+    {
+        long n = calls.get() - errors.get();
+        return n <= 0L ? 0.0 : (double) hits.get() / n;
+    }
+
+    public long getErrors()
+    {
+        return errors.get();
+    }
+
+    public long getLimited()
+    {
+        return limited.get();
+    }
+
+    public long getRefused()
+    {
+        return refused.get();
+    }
+
+    public long getBytes()
+    {
+        return bytes.get();
+    }
+
+    public double getMeanLatency()
+    {
+        return latency.getMean();
+    }
+
+    public double getMedianLatency()
+    {
+        return latency.getMedian();
+    }
+
+    public double get90thPercentileLatency()
+    {
+        return latency.get90thPercentile();
+    }
+
+    public double get99thPercentileLatency()
+    {
+        return latency.get99thPercentile();
+    }
+
+    public double getMaxLatency()
+    {
+        return latency.getMax();
+    }
+
+    /**
+     * Summarize the metrics.
+     *
+     * @return          Printable string
+     */
+    public String toString()
+    {
+        return String.format("%s: %d calls, %d hits, %d misses, %d errors (%d limited, %d refused), %d bytes; %s",
+            name, getCalls(), getHits(), getMisses(), getErrors(), getLimited(), getRefused(), getBytes(), latency);
+    }
+}
@@ -0,0 +1,24 @@
+package info.koosah.wxaloftuiservlet;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * JMX view of the TileMetrics for one layer of tile providers.
+ * Latencies are in milliseconds.
+ */
+public interface TileMetricsMBean
+{
+    public long getCalls();
+    public long getHits();
+    public long getMisses();
+    public double getHitRatio();
+    public long getErrors();
+    public long getLimited();
+    public long getRefused();
+    public long getBytes();
+    public double getMeanLatency();
+    public double getMedianLatency();
+    public double get90thPercentileLatency();
+    public double get99thPercentileLatency();
+    public double getMaxLatency();
+}
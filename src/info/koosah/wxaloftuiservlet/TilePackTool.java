@@ -0,0 +1,95 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Maintenance tool for tile packs (see PackTileProvider). Can import an
+ * existing directory cache (as made by CachingTileProvider) into a set of
+ * packs, and compact a set of packs. Packs in use by another process
+ * (e.g. the servlet) are locked, and left alone.
+ *
+ * @author David Barts <n5jrn@me.com>
+ *
+ */
+public class TilePackTool {
+
+    public static final String MYNAME = "TilePackTool";
+
+    public static void main(String[] args) throws Exception
+    {
+        // Parse command-line options
+        if (!(args.length == 3 && args[0].equals("import")) && !(args.length == 2 && args[0].equals("compact"))) {
+            System.err.format("%s: syntax: %s import cachedir packdir%n", MYNAME, MYNAME);
+            System.err.format("       %s compact packdir%n", MYNAME);
+            System.exit(2);
+        }
+
+        // Do it (packs in use, e.g. by the servlet, are refused)
+        try {
+            if (args[0].equals("import"))
+                doImport(new File(args[1]), new File(args[2]));
+            else
+                doCompact(new File(args[1]));
+        } catch (IOException e) {
+            System.err.format("%s: %s%n", MYNAME, e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void doImport(File cacheDir, File packDir) throws IOException
+    {
+        PackTileProvider p = new PackTileProvider(packDir, null);
+        int count = 0;
+        long bytes = 0L;
+        try {
+            for (File cz : listNumeric(cacheDir)) {
+                int z = Integer.parseInt(cz.getName());
+                for (File czy : listNumeric(cz)) {
+                    int y = Integer.parseInt(czy.getName());
+                    for (File czyx : czy.listFiles()) {
+                        String name = czyx.getName();
+                        String suffix = "." + TileImages.TYPE;
+                        if (!name.endsWith(suffix))
+                            continue;
+                        int x = 0;
+                        try {
+                            x = Integer.parseInt(name.substring(0, name.length() - suffix.length()));
+                        } catch (NumberFormatException e) {
+                            continue;
+                        }
+                        byte[] data = null;
+                        try (FileInputStream in = new FileInputStream(czyx)) {
+                            data = TileImages.readAll(in);
+                        }
+                        p.put(TileKey.make(x, y, z), czyx.lastModified(), data);
+                        count++;
+                        bytes += data.length;
+                    }
+                }
+            }
+        } finally {
+            p.close();
+        }
+        System.out.format("Imported %d tiles (%d bytes) into \"%s\".%n", count, bytes, packDir);
+    }
+
+    private static void doCompact(File packDir) throws IOException
+    {
+        PackTileProvider p = new PackTileProvider(packDir, null);
+        try {
+            long dead = p.getDeadBytes();
+            p.compact();
+            System.out.format("Compacted %d tiles, %d bytes reclaimed.%n", p.getCount(), dead);
+        } finally {
+            p.close();
+        }
+    }
+
+    private static File[] listNumeric(File dir)
+    {
+        File[] ret = dir.listFiles(f -> f.isDirectory() && f.getName().matches("[0-9]+"));
+        return ret == null ? new File[0] : ret;
+    }
+}
@@ -1,9 +1,7 @@
 package info.koosah.wxaloftuiservlet;
 
-import javax.imageio.ImageIO;
 import java.awt.Image;
 import java.io.IOException;
-import java.net.URL;
 
 /**
  * @author David Barts <n5jrn@me.com>
@@ -13,11 +11,6 @@ import java.net.URL;
  */
 abstract public class TileProvider
 {
-    public TileProvider()
-    {
-        System.setProperty("http.agent", "WxAloftUi (http://github.com/DavidBarts/WxAloftUi)");
-    }
-
     /**
      * Gets the tile for the specified column, row, and zoom level.
      * @param x         Column
@@ -26,10 +19,54 @@ abstract public class TileProvider
      * @return          Image of the tile
      */
     public Image getTile(int x, int y, int z) throws IOException
+    {
+        return TileImages.decode(getTileBytes(x, y, z));
+    }
+
+    /**
+     * Gets the encoded tile (i.e. the bytes of its image file, exactly
+     * as served) for the specified column, row, and zoom level.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          Encoded tile
+     */
+    public byte[] getTileBytes(int x, int y, int z) throws IOException
+    {
+        return getTileIfChanged(x, y, z, null, 0L).getData();
+    }
+
+    /**
+     * Gets the encoded tile for the specified column, row, and zoom level
+     * only if it is already cached (however old it is), never fetching
+     * it. Providers that cache tiles must override this.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          Encoded tile, or null if not cached
+     */
+    public byte[] getCachedTileBytes(int x, int y, int z) throws IOException
+    {
+        return null;
+    }
+
+    /**
+     * Gets the encoded tile for the specified column, row, and zoom level,
+     * unless it has not changed since a previous fetch. This is done with
+     * an HTTP conditional GET (using the shared TileHttpClient); providers
+     * not backed by a tile server must override it.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @param etag      Entity tag from previous fetch, or null
+     * @param lastModified Last-modified time from previous fetch, or 0
+     * @return          TileResponse object
+     */
+    public TileResponse getTileIfChanged(int x, int y, int z, String etag, long lastModified) throws IOException
     {
         String urlString = getTileUrl(x, y, z);
         try {
-            return ImageIO.read(new URL(urlString));
+            return TileHttpClient.getDefault().get(urlString, etag, lastModified);
         } catch (IOException e) {
             throw new IOException("Unable to read URL: " + urlString, e);
         }
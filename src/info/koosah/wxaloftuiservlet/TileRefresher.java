@@ -0,0 +1,127 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * Refreshes cached things in the background, on a small pool of
+ * low-priority threads with a bounded queue. Requests to refresh
+ * something already waiting to be refreshed are ignored, as are
+ * requests made when the queue is full (the thing will simply be
+ * requested again the next time someone notices it is stale).
+ */
+public class TileRefresher
+{
+    private static final Logger LOGGER = Logger.getLogger(TileRefresher.class.getCanonicalName());
+    public static final int THREADS = 2;
+    public static final int QUEUE = 64;
+
+    private ThreadPoolExecutor executor;
+    private Set<Object> pending;
+    private AtomicLong submitted, dropped, failed;
+
+    /**
+     * Constructor.
+     *
+     * @param threads   Number of worker threads
+     * @param queue     Maximum number of refreshes waiting to run
+     */
+    public TileRefresher(int threads, int queue)
+    {
+        final AtomicInteger serial = new AtomicInteger(0);
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TileRefresher-" + serial.incrementAndGet());
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        pending = ConcurrentHashMap.newKeySet();
+        submitted = new AtomicLong(0L);
+        dropped = new AtomicLong(0L);
+        failed = new AtomicLong(0L);
+    }
+
+    /**
+     * Request that something be refreshed.
+     *
+     * @param key       Identifies the thing to refresh
+     * @param work      Refreshes it
+     * @return          True if the request was accepted
+     */
+    public boolean refresh(Object key, Callable<?> work)
+    {
+        if (!pending.add(key))
+            return false;
+        try {
+            executor.execute(() -> {
+                try {
+                    work.call();
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    LOGGER.log(Level.WARNING, "Unable to refresh " + key, e);
+                } finally {
+                    pending.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            dropped.incrementAndGet();
+            return false;
+        }
+        submitted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Get number of refreshes accepted.
+     *
+     * @return          Count
+     */
+    public long getSubmitted()
+    {
+        return submitted.get();
+    }
+
+    /**
+     * Get number of refreshes dropped because the queue was full.
+     *
+     * @return          Count
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Get number of refreshes that failed.
+     *
+     * @return          Count
+     */
+    public long getFailed()
+    {
+        return failed.get();
+    }
+
+    /**
+     * Abandon all pending refreshes and let the worker threads exit.
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+}
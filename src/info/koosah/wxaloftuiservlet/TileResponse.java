@@ -0,0 +1,69 @@
+package info.koosah.wxaloftuiservlet;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * The result of conditionally fetching an encoded tile: either the tile
+ * and its validators (entity tag and last-modified time, either of which
+ * may be missing), or an indication that the tile has not changed.
+ */
+public class TileResponse
+{
+    private byte[] data;
+    private String etag;
+    private long lastModified;
+
+    /**
+     * Constructor.
+     *
+     * @param data          Encoded tile, or null if not modified
+     * @param etag          Entity tag, or null if none
+     * @param lastModified  Last-modified time in Java time, or 0 if none
+     */
+    public TileResponse(byte[] data, String etag, long lastModified)
+    {
+        this.data = data;
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Did the tile change?
+     *
+     * @return          True if so (in which case there is data)
+     */
+    public boolean isModified()
+    {
+        return data != null;
+    }
+
+    /**
+     * Get encoded tile.
+     *
+     * @return          Encoded tile, or null if not modified
+     */
+    public byte[] getData()
+    {
+        return data;
+    }
+
+    /**
+     * Get entity tag.
+     *
+     * @return          Entity tag, or null if none
+     */
+    public String getEtag()
+    {
+        return etag;
+    }
+
+    /**
+     * Get last-modified time.
+     *
+     * @return          Java time, or 0 if none
+     */
+    public long getLastModified()
+    {
+        return lastModified;
+    }
+}
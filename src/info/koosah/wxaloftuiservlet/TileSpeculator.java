@@ -0,0 +1,272 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * Speculatively loads the tiles for maps a user is likely to ask for
+ * next (e.g. the pan and zoom targets on the mobile page), on a small
+ * pool of low-priority threads, so that following a link is fast. Each
+ * session has at most one batch of speculation in progress; starting a
+ * new batch for a session cancels the old one. Cancellation is done by
+ * checking between tiles, not by interrupting, so that a tile already
+ * being fetched (and paid for with a rate-limit token) still gets cached.
+ * The speculator's stack fetches for itself: its fetches, and their
+ * failures (e.g. for want of a spare token), are never shared with
+ * foreground requests.
+ *
+ * Tiles are only loaded into the disk cache, not decoded, so as not to
+ * crowd the memory cache with tiles nobody may ask for. Optionally, for
+ * popular areas (those viewed often enough), the maps themselves are
+ * also rendered into a RenderCache, since other sessions viewing the
+ * same area will likely ask for the same maps.
+ */
+public class TileSpeculator
+{
+    private static final Logger LOGGER = Logger.getLogger(TileSpeculator.class.getCanonicalName());
+    public static final int THREADS = 1;
+    public static final int QUEUE = 16;
+    public static final int MAX_TILES = 100;  /* per batch */
+    public static final int POPULAR = 3;  /* views of an area */
+
+    private TileProvider provider;
+    private int maxTiles;
+    private RenderCache renders;
+    private ImagePool pool;
+    private TileFetcher fetcher;
+    private int popular;
+    private ConcurrentHashMap<Integer, AtomicInteger> views;
+    private ThreadPoolExecutor executor;
+    private ConcurrentHashMap<String, Batch> batches;
+    private AtomicLong submitted, cancelled, dropped, loaded, rendered;
+
+    /**
+     * Constructor.
+     *
+     * @param provider  Provider to load tiles from (and into), which
+                        should have no memory cache
+     * @param threads   Number of worker threads
+     * @param maxTiles  Maximum tiles to load per batch
+     */
+    public TileSpeculator(TileProvider provider, int threads, int maxTiles)
+    {
+        this.provider = provider;
+        this.maxTiles = maxTiles;
+        final AtomicInteger serial = new AtomicInteger(0);
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(QUEUE), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TileSpeculator-" + serial.incrementAndGet());
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        batches = new ConcurrentHashMap<String, Batch>();
+        submitted = new AtomicLong(0L);
+        cancelled = new AtomicLong(0L);
+        dropped = new AtomicLong(0L);
+        loaded = new AtomicLong(0L);
+        rendered = new AtomicLong(0L);
+        views = new ConcurrentHashMap<Integer, AtomicInteger>();
+    }
+
+    /**
+     * Also render the maps for popular areas, once their tiles have been
+     * loaded. Rendering is done by threads of our own.
+     *
+     * @param renders   Cache to render maps into
+     * @param pool      Pool of images to render maps with
+     * @param popular   Views of an area that make it popular
+     */
+    public void setPrerender(RenderCache renders, ImagePool pool, int popular)
+    {
+        this.renders = renders;
+        this.pool = pool;
+        this.popular = popular;
+        fetcher = new TileFetcher(executor.getCorePoolSize(), TileFetcher.DEADLINE);
+    }
+
+    /**
+     * Speculatively load the tiles for some maps, cancelling any
+     * speculation already in progress for the same session.
+     *
+     * @param session   Session ID
+     * @param area      ID of the area being viewed
+     * @param targets   Maps, each as { south, west, north, east, zoom }
+     */
+    public void speculate(String session, int area, List<int[]> targets)
+    {
+        AtomicInteger v = views.get(area);
+        if (v == null) {
+            AtomicInteger nv = new AtomicInteger(0);
+            v = views.putIfAbsent(area, nv);
+            if (v == null)
+                v = nv;
+        }
+        boolean prerender = renders != null && v.incrementAndGet() >= popular;
+        Batch batch = new Batch(session, targets, prerender);
+        Batch old = batches.put(session, batch);
+        if (old != null && !old.done) {
+            old.cancelled = true;
+            cancelled.incrementAndGet();
+        }
+        try {
+            executor.execute(batch);
+            submitted.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            batches.remove(session, batch);
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get number of batches accepted.
+     *
+     * @return          Count
+     */
+    public long getSubmitted()
+    {
+        return submitted.get();
+    }
+
+    /**
+     * Get number of batches cancelled by a newer one.
+     *
+     * @return          Count
+     */
+    public long getCancelled()
+    {
+        return cancelled.get();
+    }
+
+    /**
+     * Get number of batches dropped because the queue was full.
+     *
+     * @return          Count
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Get number of tiles loaded.
+     *
+     * @return          Count
+     */
+    public long getLoaded()
+    {
+        return loaded.get();
+    }
+
+    /**
+     * Get number of maps rendered.
+     *
+     * @return          Count
+     */
+    public long getRendered()
+    {
+        return rendered.get();
+    }
+
+    /**
+     * Abandon all pending speculation and let the worker threads exit.
+     */
+    public void shutdown()
+    {
+        for (Batch b : batches.values())
+            b.cancelled = true;
+        executor.shutdownNow();
+        if (fetcher != null)
+            fetcher.shutdown();
+    }
+
+    /**
+     * Summarize speculation statistics.
+     *
+     * @return          Printable string
+     */
+    public String toString()
+    {
+        return String.format("%d submitted, %d cancelled, %d dropped, %d tiles loaded, %d maps rendered",
+            submitted.get(), cancelled.get(), dropped.get(), loaded.get(), rendered.get());
+    }
+
+    /* one session's worth of speculation */
+    private class Batch implements Runnable
+    {
+        private String session;
+        private List<int[]> targets;
+        private boolean prerender;
+        volatile boolean cancelled, done;
+
+        public Batch(String session, List<int[]> targets, boolean prerender)
+        {
+            this.session = session;
+            this.targets = targets;
+            this.prerender = prerender;
+            this.cancelled = this.done = false;
+        }
+
+        public void run()
+        {
+            int count = 0;
+            try {
+                for (int[] t : targets) {
+                    Map m = null;
+                    try {
+                        m = new Map(t[0], t[1], t[2], t[3], t[4], null);
+                    } catch (IllegalArgumentException e) {
+                        LOGGER.log(Level.FINE, "Invalid speculative map", e);
+                        continue;
+                    }
+                    boolean complete = true;
+                    for (Tile tile : m.getTiles()) {
+                        if (cancelled || count++ >= maxTiles)
+                            return;
+                        try {
+                            provider.getTileBytes(tile.getX(), tile.getY(), tile.getZoom());
+                            loaded.incrementAndGet();
+                        } catch (IOException e) {
+                            complete = false;
+                            LOGGER.log(Level.FINE, "Unable to speculatively load tile", e);
+                        }
+                    }
+                    if (prerender && complete && !cancelled)
+                        render(m);
+                }
+            } finally {
+                done = true;
+                batches.remove(session, this);
+            }
+        }
+
+        /* render a map whose tiles are all on disk into the render cache */
+        private void render(Map m)
+        {
+            Map r = new Map(m.southPixel(), m.westPixel(), m.northPixel(), m.eastPixel(), m.getZoom(), provider);
+            if (renders.contains(r))
+                return;
+            r.setFetcher(fetcher);
+            try (ImagePool.Lease lease = pool.lease(r.getWidth(), r.getHeight())) {
+                renders.render(r, lease.getImage());
+                rendered.incrementAndGet();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Unable to speculatively render map", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.sql.DataSource;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * The application's stack of tile providers, and everything they share
+ * (caches, rate limits, thread pools, background workers), built once
+ * when the application starts, as declared by context parameters. The
+ * caches of maps made from tiles (rendered, and fully encoded), and the
+ * pool of images they are rendered into, live here too.
+ *
+ * The tiles.chain parameter lists the layers of the stack, from the top
+ * down; the bottom layer is always the tile server, whose tile URLs are
+ * given by the tiles.upstream.url template. Layers are:
+ *
+ *   memory    decoded tiles in memory (MemoryTileProvider)
+ *   overzoom  stand-ins for missing tiles (OverzoomTileProvider)
+ *   disk      encoded tiles on disk, in the directory given by the cache
+ *             parameter or the packs given by cache.pack (which are
+ *             compacted in the background, see PackCompactor)
+ *   limit     global rate limit (LimitingTileProvider)
+ *   breaker   negative cache and circuit breaker (BreakerTileProvider),
+ *             best below limit, lest rate-limit waits count as slowness
+ *
+ * Each layer is metered (see MeteredTileProvider), with its metrics
+ * published via JMX. Besides the stack used to draw maps, variants of it
+ * (only the layers from disk down) are used to warm the disk cache at
+ * startup (patient with the rate limit) and to load tiles speculatively
+ * (not waiting at all for the rate limit). Both only use tokens beyond
+ * the tiles.upstream.reserve kept for drawing maps, and each stack only
+ * coalesces fetches with itself, so that they never delay them.
+ */
+public class TileStack
+{
+    private static final Logger LOGGER = Logger.getLogger(TileStack.class.getCanonicalName());
+    public static final String ATTRIBUTE = TileStack.class.getCanonicalName();
+    public static final String CHAIN = "memory overzoom disk limit breaker";
+    public static final double RATE = 10.0;  /* upstream tiles per second */
+    public static final int BURST = 25;  /* upstream tiles at once */
+    public static final long WAIT = 2000L;  /* ms to wait for upstream */
+    public static final int RESERVE = 15;  /* upstream tiles kept from background work */
+    public static final long MEMORY_CACHE = 256L * 1024L * 1024L;  /* 1024 decoded tiles */
+    public static final long MAX_STALE = 90L * 24L * 60L * 60L * 1000L;  /* 90 days */
+    public static final long WARM_WAIT = 60000L;  /* ms warmer waits for upstream */
+
+    private ServletContext context;
+    private List<String> layers;
+    private String upstreamUrl;
+    private ImageCache<Long> tileCache;
+    private RenderCache renderCache;
+    private MapResponseCache responseCache;
+    private ImagePool imagePool;
+    private TileFetcher tileFetcher;
+    private File cacheDir;
+    private PackTileProvider tilePack;
+    private PackCompactor packCompactor;
+    private long maxLife, maxStale;
+    private TileRefresher tileRefresher;
+    private TokenBucket upstreamLimit;
+    private long upstreamWait;
+    private int upstreamReserve;
+    private CircuitBreaker upstreamBreaker;
+    private NegativeCache<Long> upstreamFailed;
+    private TileCacheJanitor tileJanitor;
+    private TileWarmer tileWarmer;
+    private TileSpeculator tileSpeculator;
+    private HashMap<String, TileMetrics> metrics;
+    private ArrayList<ObjectName> mbeans;
+    private TileProvider provider;
+    private OverzoomTileProvider fallback;
+
+    /**
+     * Constructor. Builds the stack, but does not start any of its
+     * background workers.
+     *
+     * @param context   ServletContext holding our parameters
+     */
+    public TileStack(ServletContext context) throws ServletException
+    {
+        this.context = context;
+
+        /* what the stack consists of */
+        layers = Arrays.asList(getStringParameter("tiles.chain", CHAIN).split("[\\s,]+"));
+        upstreamUrl = getStringParameter("tiles.upstream.url", OsmTileProvider.TEMPLATE);
+        metrics = new HashMap<String, TileMetrics>();
+        mbeans = new ArrayList<ObjectName>();
+        for (String layer : layers)
+            metrics.put(layer, new TileMetrics(layer));
+        metrics.put("upstream", new TileMetrics("upstream"));
+
+        /* the shared parts of it (the HTTP client is only put into use
+           once everything else has been built successfully) */
+        TileHttpClient client = new TileHttpClient(
+            (int) getLongParameter("tiles.http.connections", TileHttpClient.CONNECTIONS),
+            (int) getLongParameter("tiles.http.timeout.connect", TileHttpClient.CONNECT_TIMEOUT),
+            (int) getLongParameter("tiles.http.timeout.read", TileHttpClient.READ_TIMEOUT),
+            getStringParameter("tiles.http.agent", TileHttpClient.USER_AGENT));
+        try {
+            init();
+        } catch (ServletException|RuntimeException e) {
+            release();
+            throw e;
+        }
+        TileHttpClient.setDefault(client);
+    }
+
+    /* everything else the constructor does; may leave threads and packs
+       that need releasing if it fails */
+    private void init() throws ServletException
+    {
+        tileCache = new ImageCache<Long>(getLongParameter("tiles.memory.bytes", MEMORY_CACHE));
+        long renderBytes = getLongParameter("tiles.render.bytes", RenderCache.MAX_BYTES);
+        if (renderBytes > 0L)
+            renderCache = new RenderCache(renderBytes);
+        imagePool = new ImagePool(GetMap.PIXELS, GetMap.PIXELS,
+            (int) getLongParameter("maps.pool.idle", ImagePool.MAX_IDLE));
+        responseCache = new MapResponseCache(
+            getLongParameter("maps.cache.bytes", MapResponseCache.MAX_BYTES),
+            getLongParameter("maps.cache.ttl", MapResponseCache.TTL));
+        tileFetcher = new TileFetcher(
+            (int) getLongParameter("tiles.fetch.threads", TileFetcher.THREADS),
+            getLongParameter("tiles.fetch.deadline", TileFetcher.DEADLINE));
+        upstreamLimit = new TokenBucket(
+            getDoubleParameter("tiles.upstream.rate", RATE),
+            (int) getLongParameter("tiles.upstream.burst", BURST));
+        upstreamWait = getLongParameter("tiles.upstream.wait", WAIT);
+        upstreamReserve = (int) getLongParameter("tiles.upstream.reserve", RESERVE);
+        upstreamBreaker = new CircuitBreaker(
+            getDoubleParameter("tiles.breaker.errors", CircuitBreaker.ERROR_RATE),
+            getLongParameter("tiles.breaker.slow", CircuitBreaker.SLOW_CALL),
+            getDoubleParameter("tiles.breaker.slow.rate", CircuitBreaker.SLOW_RATE),
+            getLongParameter("tiles.breaker.open", CircuitBreaker.OPEN_TIME));
+        upstreamFailed = new NegativeCache<Long>(
+            getLongParameter("tiles.failed.ttl", NegativeCache.TTL), NegativeCache.MAX_SIZE);
+        tileRefresher = new TileRefresher(
+            (int) getLongParameter("tiles.refresh.threads", TileRefresher.THREADS),
+            (int) getLongParameter("tiles.refresh.queue", TileRefresher.QUEUE));
+        maxLife = getLongParameter("tiles.disk.ttl", CachingTileProvider.MAXLIFE);
+        maxStale = getLongParameter("tiles.stale.max", MAX_STALE);
+        String cachePath = getStringParameter("cache", null);
+        cacheDir = cachePath == null ? null : new File(cachePath);
+        long diskBytes = getLongParameter("tiles.disk.bytes", 0L);
+        long diskFiles = getLongParameter("tiles.disk.files", 0L);
+        if (cacheDir != null && (diskBytes > 0L || diskFiles > 0L))
+            tileJanitor = new TileCacheJanitor(cacheDir, diskBytes, diskFiles,
+                getLongParameter("tiles.disk.interval", TileCacheJanitor.INTERVAL));
+
+        /* the stack used to draw maps */
+        provider = build(layers, upstreamWait, 0);
+
+        /* variants of it for warming and speculation */
+        int disk = layers.indexOf("disk");
+        int warmLevels = (int) getLongParameter("tiles.warm.levels", TileWarmer.LEVELS);
+        int warmMax = (int) getLongParameter("tiles.warm.max", TileWarmer.MAX_TILES);
+        if (disk >= 0 && warmLevels > 0 && warmMax > 0) {
+            try {
+                Context c = (Context) (new InitialContext()).lookup("java:comp/env");
+                tileWarmer = new TileWarmer((DataSource) c.lookup("jdbc/WxDB"),
+                    build(layers.subList(disk, layers.size()), WARM_WAIT, upstreamReserve), warmLevels, warmMax);
+            } catch (NamingException e) {
+                LOGGER.log(Level.WARNING, "Unable to find database, not warming tile cache", e);
+            }
+        }
+        int speculateThreads = (int) getLongParameter("tiles.speculate.threads", TileSpeculator.THREADS);
+        if (disk >= 0 && speculateThreads > 0) {
+            tileSpeculator = new TileSpeculator(build(layers.subList(disk, layers.size()), 0L, upstreamReserve),
+                speculateThreads, (int) getLongParameter("tiles.speculate.max", TileSpeculator.MAX_TILES));
+            int popular = (int) getLongParameter("tiles.speculate.popular", TileSpeculator.POPULAR);
+            if (renderCache != null && popular > 0)
+                tileSpeculator.setPrerender(renderCache, imagePool, popular);
+        }
+    }
+
+    /* build a stack of the specified layers, which waits as specified for
+       the rate limit, and leaves the specified number of tokens for others
+       (see TokenBucket.acquireSpare) */
+    private TileProvider build(List<String> which, long maxWait, int reserve) throws ServletException
+    {
+        TileProvider ret = new MeteredTileProvider(metrics.get("upstream"), new UrlTileProvider(upstreamUrl));
+        for (int i = which.size() - 1; i >= 0; i--) {
+            String layer = which.get(i);
+            switch (layer) {
+            case "memory":
+                ret = new MemoryTileProvider(tileCache, ret);
+                break;
+            case "overzoom":
+                OverzoomTileProvider o = new OverzoomTileProvider(ret);
+                if (fallback == null)
+                    fallback = o;
+                ret = o;
+                break;
+            case "disk":
+                ret = getDiskCache(ret);
+                break;
+            case "breaker":
+                ret = new BreakerTileProvider(upstreamBreaker, upstreamFailed, ret);
+                break;
+            case "limit":
+                ret = new LimitingTileProvider(upstreamLimit, maxWait, reserve, ret);
+                break;
+            default:
+                throw new ServletException("Unknown tiles.chain layer: " + layer);
+            }
+            ret = new MeteredTileProvider(metrics.get(layer), ret);
+        }
+        return ret;
+    }
+
+    /* the on-disk tile cache (a pack or a directory), in front of the
+       specified upstream; either way each stack gets its own upstream and
+       coalesces fetches only with itself, but there is only one set of
+       packs, which later stacks share (see PackTileProvider.withUpstream) */
+    private TileProvider getDiskCache(TileProvider upstream) throws ServletException
+    {
+        if (tilePack != null)
+            return tilePack.withUpstream(upstream);
+        String packPath = getStringParameter("cache.pack", null);
+        if (packPath != null) {
+            try {
+                tilePack = new PackTileProvider(new File(packPath), maxLife, upstream);
+            } catch (IOException e) {
+                throw new ServletException("Unable to open tile packs in " + packPath, e);
+            }
+            packCompactor = new PackCompactor(tilePack,
+                getDoubleParameter("tiles.pack.dead", PackCompactor.DEAD),
+                getLongParameter("tiles.pack.interval", PackCompactor.INTERVAL));
+            return tilePack;
+        }
+        if (cacheDir == null)
+            throw new ServletException("No cache defined!");
+        CachingTileProvider c = new CachingTileProvider(cacheDir, upstream);
+        c.setMaxLife(maxLife);
+        c.setStaleWhileRevalidate(tileRefresher, maxStale);
+        c.setJanitor(tileJanitor);
+        return c;
+    }
+
+    /**
+     * Start the background workers, and publish statistics via JMX.
+     */
+    public void start()
+    {
+        for (String layer : metrics.keySet())
+            register("TileMetrics", layer, metrics.get(layer));
+        register("LatencyHistogram", "decode", TileImages.getDecodeTimes());
+        if (tileJanitor != null)
+            tileJanitor.start();
+        if (packCompactor != null)
+            packCompactor.start();
+        if (tileWarmer != null)
+            tileWarmer.start();
+    }
+
+    /**
+     * Stop the background workers and release shared resources.
+     */
+    public void destroy()
+    {
+        LOGGER.log(Level.INFO, "Memory tile cache: " + tileCache);
+        for (TileMetrics m : metrics.values())
+            LOGGER.log(Level.INFO, "Tile metrics: " + m);
+        unregister();
+        LOGGER.log(Level.INFO, "Upstream tile limit: " + upstreamLimit);
+        LOGGER.log(Level.INFO, "Upstream circuit breaker: " + upstreamBreaker);
+        if (tileWarmer != null) {
+            tileWarmer.stop();
+            LOGGER.log(Level.INFO, "Tile cache warming: " + tileWarmer);
+        }
+        if (tileSpeculator != null)
+            LOGGER.log(Level.INFO, "Tile speculation: " + tileSpeculator);
+        tileCache.clear();
+        if (renderCache != null) {
+            LOGGER.log(Level.INFO, "Rendered map cache: " + renderCache);
+            renderCache.clear();
+        }
+        LOGGER.log(Level.INFO, "Map image pool: " + imagePool);
+        LOGGER.log(Level.INFO, "Map response cache: " + responseCache);
+        responseCache.clear();
+        if (tileJanitor != null) {
+            tileJanitor.stop();
+            LOGGER.log(Level.INFO, "Disk tile cache: " + tileJanitor);
+        }
+        if (packCompactor != null) {
+            packCompactor.stop();
+            LOGGER.log(Level.INFO, "Tile pack compaction: " + packCompactor);
+        }
+        release();
+    }
+
+    /* shut down the thread pools and close the packs, whichever exist */
+    private void release()
+    {
+        if (tileSpeculator != null)
+            tileSpeculator.shutdown();
+        if (tileFetcher != null)
+            tileFetcher.shutdown();
+        if (tileRefresher != null)
+            tileRefresher.shutdown();
+        if (tilePack != null) {
+            try {
+                tilePack.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to close tile packs", e);
+            }
+        }
+    }
+
+    /**
+     * Get the provider to draw maps with.
+     *
+     * @return          TileProvider object
+     */
+    public TileProvider getProvider()
+    {
+        return provider;
+    }
+
+    /**
+     * Get the provider of stand-ins for tiles that could not be had.
+     *
+     * @return          OverzoomTileProvider object, or null if none
+     */
+    public OverzoomTileProvider getFallback()
+    {
+        return fallback;
+    }
+
+    /**
+     * Get the cache of rendered maps.
+     *
+     * @return          RenderCache object, or null if none
+     */
+    public RenderCache getRenderCache()
+    {
+        return renderCache;
+    }
+
+    /**
+     * Get the pool of images to render maps into.
+     *
+     * @return          ImagePool object
+     */
+    public ImagePool getImagePool()
+    {
+        return imagePool;
+    }
+
+    /**
+     * Get the cache of complete map responses.
+     *
+     * @return          MapResponseCache object
+     */
+    public MapResponseCache getResponseCache()
+    {
+        return responseCache;
+    }
+
+    /**
+     * Get the fetcher to draw maps with.
+     *
+     * @return          TileFetcher object
+     */
+    public TileFetcher getFetcher()
+    {
+        return tileFetcher;
+    }
+
+    /**
+     * Get the speculative tile loader.
+     *
+     * @return          TileSpeculator object, or null if none
+     */
+    public TileSpeculator getSpeculator()
+    {
+        return tileSpeculator;
+    }
+
+    /* make statistics visible via JMX */
+    private void register(String type, String name, Object mbean)
+    {
+        try {
+            ObjectName oname = new ObjectName(String.format("%s:type=%s,name=%s",
+                TileStack.class.getPackage().getName(), type, name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, oname);
+            mbeans.add(oname);
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Unable to register " + type + " MBean " + name, e);
+        }
+    }
+
+    private void unregister()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName oname : mbeans) {
+            try {
+                server.unregisterMBean(oname);
+            } catch (JMException e) {
+                LOGGER.log(Level.WARNING, "Unable to unregister MBean " + oname, e);
+            }
+        }
+        mbeans.clear();
+    }
+
+    private String getStringParameter(String name, String dflt)
+    {
+        String raw = context.getInitParameter(name);
+        return raw == null ? dflt : raw.trim();
+    }
+
+    private long getLongParameter(String name, long dflt) throws ServletException
+    {
+        String raw = getStringParameter(name, null);
+        if (raw == null)
+            return dflt;
+        try {
+            return Long.parseLong(raw);
+        } catch (NumberFormatException e) {
+            throw new ServletException("Invalid " + name + " parameter: " + raw, e);
+        }
+    }
+
+    private double getDoubleParameter(String name, double dflt) throws ServletException
+    {
+        String raw = getStringParameter(name, null);
+        if (raw == null)
+            return dflt;
+        try {
+            return Double.parseDouble(raw);
+        } catch (NumberFormatException e) {
+            throw new ServletException("Invalid " + name + " parameter: " + raw, e);
+        }
+    }
+}
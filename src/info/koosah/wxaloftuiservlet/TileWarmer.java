@@ -0,0 +1,204 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+import static info.koosah.wxaloftuiservlet.WorldPixel.*;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * Warms a tile cache in the background, so that the first maps drawn
+ * after startup need not wait for the tile server. For each area in the
+ * database, we fetch the tiles needed for the default view of that area
+ * (as computed by ObsmBean), plus those needed for views of the same
+ * size centered on the area's terminal at the next few zoom levels in.
+ * Tiles are only fetched, not decoded, and there is a cap on the total
+ * number fetched.
+ */
+public class TileWarmer implements Runnable
+{
+    private static final Logger LOGGER = Logger.getLogger(TileWarmer.class.getCanonicalName());
+    public static final int LEVELS = 3;
+    public static final int MAX_TILES = 2000;
+    private static final double MARGIN = 0.125;  /* same as ObsmBean */
+
+    private DataSource dataSource;
+    private TileProvider provider;
+    private int levels, maxTiles;
+    private AtomicInteger total, done, failed;
+    private Thread thread;
+
+    /**
+     * Constructor.
+     *
+     * @param dataSource    Where to find the areas
+     * @param provider      Provider whose cache is to be warmed
+     * @param levels        Number of zoom levels to warm per area
+     * @param maxTiles      Maximum total number of tiles to fetch
+     */
+    public TileWarmer(DataSource dataSource, TileProvider provider, int levels, int maxTiles)
+    {
+        this.dataSource = dataSource;
+        this.provider = provider;
+        this.levels = levels;
+        this.maxTiles = maxTiles;
+        this.total = new AtomicInteger(0);
+        this.done = new AtomicInteger(0);
+        this.failed = new AtomicInteger(0);
+        this.thread = null;
+    }
+
+    /**
+     * Start warming, in a background thread.
+     */
+    public synchronized void start()
+    {
+        if (thread != null)
+            return;
+        thread = new Thread(this, "TileWarmer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stop warming.
+     */
+    public synchronized void stop()
+    {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Background thread body.
+     */
+    public void run()
+    {
+        LinkedHashSet<Long> keys = null;
+        try {
+            keys = plan();
+        } catch (SQLException e) {
+            LOGGER.log(Level.SEVERE, "Unable to read areas", e);
+            return;
+        }
+        total.set(keys.size());
+        LOGGER.log(Level.INFO, String.format("Warming %d tiles", keys.size()));
+        int step = Math.max(1, keys.size() / 10);
+        for (long key : keys) {
+            if (Thread.currentThread().isInterrupted())
+                break;
+            try {
+                provider.getTileBytes(TileKey.getX(key), TileKey.getY(key), TileKey.getZ(key));
+            } catch (IOException e) {
+                failed.incrementAndGet();
+                LOGGER.log(Level.FINE, "Unable to warm tile " + TileKey.toString(key), e);
+            }
+            if (done.incrementAndGet() % step == 0)
+                LOGGER.log(Level.INFO, "Warming tiles: " + this);
+        }
+        LOGGER.log(Level.INFO, "Done warming tiles: " + this);
+    }
+
+    /* work out which tiles to warm */
+    private LinkedHashSet<Long> plan() throws SQLException
+    {
+        LinkedHashSet<Long> ret = new LinkedHashSet<Long>();
+        try (
+            Connection conn = dataSource.getConnection();
+            PreparedStatement stmt = conn.prepareStatement("select latitude, longitude from areas order by id")
+        ) {
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next() && ret.size() < maxTiles)
+                plan(ret, rs.getDouble(1), rs.getDouble(2));
+        }
+        return ret;
+    }
+
+    private void plan(LinkedHashSet<Long> keys, double lat, double lon)
+    {
+        /* the default view */
+        double[] extents = new double[] {
+            lat - MARGIN, LatLong.normalizeLong(lon - MARGIN),
+            lat + MARGIN, LatLong.normalizeLong(lon + MARGIN) };
+        int[] size = new int[] { GetMap.PIXELS, GetMap.PIXELS };
+        Map view = Map.withSize(extents, size, null);
+        if (view == null)
+            return;
+        add(keys, view);
+
+        /* and the same-sized views closer in */
+        int half = GetMap.PIXELS / 2;
+        for (int zoom = view.getZoom() + 1; zoom < view.getZoom() + levels && zoom <= MAXZOOM; zoom++) {
+            int numPixels = makePixel(1 << zoom, 0);
+            int north = Math.max(0, fromLatitude(lat, zoom) - half);
+            int south = north + GetMap.PIXELS;
+            if (south >= numPixels) {
+                south = numPixels - 1;
+                north = south - GetMap.PIXELS;
+            }
+            int x = fromLongitude(lon, zoom);
+            add(keys, new Map(south, normalizeX(x - half, zoom), north, normalizeX(x + half, zoom), zoom, null));
+        }
+    }
+
+    private void add(LinkedHashSet<Long> keys, Map view)
+    {
+        for (Tile t : view.getTiles()) {
+            if (keys.size() >= maxTiles)
+                return;
+            keys.add(TileKey.make(t.getX(), t.getY(), t.getZoom()));
+        }
+    }
+
+    /**
+     * Get number of tiles to be warmed.
+     *
+     * @return          Count
+     */
+    public int getTotal()
+    {
+        return total.get();
+    }
+
+    /**
+     * Get number of tiles warmed so far (including failures).
+     *
+     * @return          Count
+     */
+    public int getDone()
+    {
+        return done.get();
+    }
+
+    /**
+     * Get number of tiles that could not be warmed.
+     *
+     * @return          Count
+     */
+    public int getFailed()
+    {
+        return failed.get();
+    }
+
+    /**
+     * Summarize progress.
+     *
+     * @return          Printable string
+     */
+    public String toString()
+    {
+        return String.format("%d of %d done, %d failed", done.get(), total.get(), failed.get());
+    }
+}
@@ -0,0 +1,131 @@
+package info.koosah.wxaloftuiservlet;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * A lock-free token-bucket rate limiter. Tokens accumulate at a steady
+ * rate, up to a maximum burst; each acquisition takes one. Rather than
+ * counting tokens, we keep track of when the bucket will next be empty
+ * (the "theoretical arrival time" of the generic cell rate algorithm),
+ * which lets a single compare-and-set both check for and take a token.
+ * Callers that would have to wait too long for a token are rejected.
+ */
+public class TokenBucket
+{
+    private long interval;  /* nanoseconds per token */
+    private long capacity;  /* nanoseconds' worth of tokens the bucket holds */
+    private AtomicLong tat;
+    private AtomicLong acquired, rejected;
+
+    /**
+     * Constructor. The bucket starts out full.
+     *
+     * @param rate      Tokens per second
+     * @param burst     Maximum tokens that may accumulate
+     */
+    public TokenBucket(double rate, int burst)
+    {
+        if (rate <= 0.0 || burst < 1)
+            throw new IllegalArgumentException("rate and burst must be positive");
+        interval = (long) (TimeUnit.SECONDS.toNanos(1L) / rate);
+        capacity = interval * burst;
+        tat = new AtomicLong(System.nanoTime() - capacity);
+        acquired = new AtomicLong(0L);
+        rejected = new AtomicLong(0L);
+    }
+
+    /**
+     * Take a token, waiting for one if need be.
+     *
+     * @param maxWait   Maximum time to wait, in milliseconds
+     * @return          True if a token was taken, false if rejected
+     */
+    public boolean acquire(long maxWait) throws InterruptedException
+    {
+        long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWait);
+        while (true) {
+            long now = System.nanoTime();
+            long oldTat = tat.get();
+            long newTat = Math.max(oldTat, now - capacity) + interval;
+            long wait = newTat - now;
+            if (wait > maxWaitNanos) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if (tat.compareAndSet(oldTat, newTat)) {
+                acquired.incrementAndGet();
+                if (wait > 0L)
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Take a token only if doing so leaves at least the specified number
+     * in the bucket, waiting for that to be so if need be. Unlike
+     * acquire(), waiting does not hold a place in line, so this never
+     * delays anyone else; it is meant for background work, which should
+     * only use capacity that nobody else needs.
+     *
+     * @param reserve   Tokens to leave in the bucket
+     * @param maxWait   Maximum time to wait, in milliseconds
+     * @return          True if a token was taken, false if rejected
+     */
+    public boolean acquireSpare(int reserve, long maxWait) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+        long reserved = interval * Math.min(reserve, capacity / interval - 1L);
+        while (true) {
+            long now = System.nanoTime();
+            long oldTat = tat.get();
+            long newTat = Math.max(oldTat, now - capacity) + interval;
+            long wait = newTat - now + reserved;
+            if (wait <= 0L) {
+                if (tat.compareAndSet(oldTat, newTat)) {
+                    acquired.incrementAndGet();
+                    return true;
+                }
+                continue;
+            }
+            if (now + wait > deadline) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Get number of tokens taken.
+     *
+     * @return          Count
+     */
+    public long getAcquired()
+    {
+        return acquired.get();
+    }
+
+    /**
+     * Get number of rejected acquisitions.
+     *
+     * @return          Count
+     */
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+
+    /**
+     * Summarize limiter statistics.
+     *
+     * @return          Printable string
+     */
+    public String toString()
+    {
+        return String.format("%d acquired, %d rejected", acquired.get(), rejected.get());
+    }
+}
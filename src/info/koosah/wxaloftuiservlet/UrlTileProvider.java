@@ -0,0 +1,33 @@
+package info.koosah.wxaloftuiservlet;
+
+/**
+ * @author David Barts <n5jrn@me.com>
+ *
+ * Provider that fetches tiles from any tile server, given a template for
+ * its tile URLs, in which {x}, {y} and {z} stand for the column, row and
+ * zoom level (e.g. https://tile.openstreetmap.org/{z}/{x}/{y}.png).
+ */
+public class UrlTileProvider extends TileProvider
+{
+    private String template;
+
+    public UrlTileProvider(String template)
+    {
+        this.template = template;
+    }
+
+    /**
+     * Returns the URL of a tile for the specified column, row, and
+     * zoom level.
+     * @param x         Column
+     * @param y         Row
+     * @param z         Zoom level
+     * @return          URL of the tile
+     */
+    public String getTileUrl(int x, int y, int z)
+    {
+        return template.replace("{x}", Integer.toString(x))
+            .replace("{y}", Integer.toString(y))
+            .replace("{z}", Integer.toString(z));
+    }
+}